@@ -0,0 +1,295 @@
+package io.github.orionlibs.javollama;
+
+import io.github.orionlibs.javollama.core.ChatFormat;
+import io.github.orionlibs.javollama.core.KVCacheSnapshot;
+import io.github.orionlibs.javollama.core.Message;
+import io.github.orionlibs.javollama.core.Response;
+import io.github.orionlibs.javollama.core.Role;
+import io.github.orionlibs.javollama.core.State;
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import io.github.orionlibs.javollama.llama.LlamaChatFormat;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A multi-turn conversation with the model, created by {@link LLM#startChatSession(String)}.
+ * <p>
+ * The session keeps the key/value cache of the conversation between turns, so a turn only feeds the model the tokens of
+ * the new user message, not the whole conversation. The {@link LLM} evicts the caches of idle sessions over its cap. With
+ * a snapshot directory, an evicted session saves its cache there and restores it on its next turn, see
+ * {@link KVCacheSnapshot}, otherwise it feeds the whole conversation again. One turn at a time, {@link #close()} the
+ * session once the conversation is over.
+ */
+public final class ChatSession implements AutoCloseable
+{
+    private final LLM llm;
+    private final LlamaProcessor model;
+    private final Sampler sampler;
+    private final ChatFormat chatFormat;
+    private final int maxTokens;
+    private final Path snapshotDirectory;
+    private final ReentrantLock lock = new ReentrantLock();
+    // the conversation, from position 0
+    private final List<Integer> tokens = new ArrayList<>();
+    // holds the key/value cache of the first `position` tokens, null when evicted
+    private State state;
+    private int position;
+    // the key/value cache saved when the session was last evicted
+    private Path snapshot;
+    private volatile long lastUsedNanos;
+    private boolean closed;
+
+
+    /**
+     * @param snapshotDirectory where the caches of evicted sessions are saved, null to drop them
+     */
+    ChatSession(LLM llm, LlamaProcessor model, Sampler sampler, int maxTokens, Path snapshotDirectory, String systemPrompt)
+    {
+        this.llm = llm;
+        this.model = model;
+        this.sampler = sampler;
+        this.chatFormat = new LlamaChatFormat(model.getTokenizer());
+        this.maxTokens = maxTokens;
+        this.snapshotDirectory = snapshotDirectory;
+        this.lastUsedNanos = System.nanoTime();
+        tokens.add(chatFormat.getBeginOfText());
+        if(systemPrompt != null)
+        {
+            tokens.addAll(chatFormat.encodeMessage(new Message(Role.SYSTEM, systemPrompt)));
+        }
+    }
+
+
+    /**
+     * Appends the user message to the conversation and generates the answer of the assistant, of up to
+     * {@code maxTokens} tokens, which is appended as well, followed by an end of turn when the model did not end it.
+     *
+     * @throws IllegalStateException if the conversation, with the new message, leaves no room in the context for an
+     *                               answer, the message is not appended then
+     */
+    public Response chat(String userMessage)
+    {
+        lock.lock();
+        try
+        {
+            if(closed)
+            {
+                throw new IllegalStateException("Chat session is closed");
+            }
+            int conversationSize = tokens.size();
+            tokens.addAll(chatFormat.encodeMessage(new Message(Role.USER, userMessage)));
+            tokens.addAll(chatFormat.encodeHeader(new Message(Role.ASSISTANT, "")));
+            int contextLength = model.getConfiguration().contextLength;
+            if(tokens.size() > contextLength)
+            {
+                tokens.subList(conversationSize, tokens.size()).clear();
+                throw new IllegalStateException("Chat session of " + conversationSize + " tokens has no room left for the message and its answer in the context of "
+                                + contextLength + " tokens");
+            }
+            // the last token of the prompt is fed at tokens.size() - 1 and yields the first token of the answer
+            int turnMaxTokens = maxTokens < 0 ? contextLength : (int)Math.min(contextLength, tokens.size() - 1L + maxTokens);
+            lastUsedNanos = System.nanoTime();
+            llm.chatSessionUsed(this);
+            Set<Integer> stopTokens = chatFormat.getStopTokens();
+            Response response;
+            try
+            {
+                if(state == null)
+                {
+                    state = model.acquireState();
+                    position = restoreSnapshot();
+                }
+                if(position == 0)
+                {
+                    // the first token, begin of text, is the latest token of a new state
+                    response = model.generateTokens(state, tokens.subList(1, tokens.size()), stopTokens, turnMaxTokens, sampler, null);
+                }
+                else
+                {
+                    state.latestToken = tokens.get(position);
+                    response = model.generateTokens(model, state, position, tokens.subList(position + 1, tokens.size()), stopTokens, turnMaxTokens, sampler, null);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                releaseState();
+                throw e;
+            }
+            // every token was fed to the model but the last one of the answer, or of the prompt when maxTokens leaves no
+            // room for an answer
+            List<Integer> responseTokens = response.getResponseTokens();
+            position = tokens.size() + responseTokens.size() - 1;
+            tokens.addAll(responseTokens);
+            if(!responseTokens.isEmpty() && stopTokens.contains(responseTokens.getLast()))
+            {
+                responseTokens.removeLast();
+            }
+            else
+            {
+                // an answer cut short, e.g. at maxTokens, is ended like a whole message, for the next turn to follow it
+                tokens.add(chatFormat.getEndOfTurn());
+            }
+            response.appendContent(model.getTokenizer().decode(responseTokens));
+            lastUsedNanos = System.nanoTime();
+            return response;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Number of tokens of the conversation so far.
+     */
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return tokens.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gives the key/value cache of the session back to the model, the session cannot be used anymore.
+     */
+    @Override
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            releaseState();
+            deleteSnapshot();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        llm.chatSessionClosed(this);
+    }
+
+
+    long lastUsedNanos()
+    {
+        return lastUsedNanos;
+    }
+
+
+    /**
+     * Gives the key/value cache of the session back to the model, after saving it to the snapshot directory if any,
+     * unless a turn is in progress.
+     *
+     * @return whether the session holds no cache anymore
+     */
+    boolean evictIfIdle()
+    {
+        if(!lock.tryLock())
+        {
+            return false;
+        }
+        try
+        {
+            if(state != null && snapshotDirectory != null)
+            {
+                saveSnapshot();
+            }
+            releaseState();
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    private void saveSnapshot()
+    {
+        Path file = null;
+        try
+        {
+            file = Files.createTempFile(snapshotDirectory, "chat-session-", ".kv");
+            state.latestToken = tokens.get(position);
+            KVCacheSnapshot.save(state, position, file);
+            deleteSnapshot();
+            snapshot = file;
+        }
+        catch(IOException e)
+        {
+            // the last snapshot, if any, still holds a prefix of the conversation, the rest is fed again on the next turn
+            delete(file);
+        }
+    }
+
+
+    /**
+     * Restores the key/value cache of the last snapshot into the state if any.
+     *
+     * @return the number of tokens of the conversation in the cache, 0 if none
+     */
+    private int restoreSnapshot()
+    {
+        if(snapshot == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return KVCacheSnapshot.restore(state, snapshot);
+        }
+        catch(IOException e)
+        {
+            deleteSnapshot();
+            return 0;
+        }
+    }
+
+
+    private void deleteSnapshot()
+    {
+        delete(snapshot);
+        snapshot = null;
+    }
+
+
+    private static void delete(Path file)
+    {
+        if(file != null)
+        {
+            try
+            {
+                Files.deleteIfExists(file);
+            }
+            catch(IOException e)
+            {
+                // a file still mapped by a state cannot be deleted on every platform, it is only wasted space
+            }
+        }
+    }
+
+
+    private void releaseState()
+    {
+        if(state != null)
+        {
+            model.releaseState(state);
+            state = null;
+            position = 0;
+        }
+    }
+}
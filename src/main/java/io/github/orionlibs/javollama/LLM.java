@@ -8,6 +8,7 @@ import io.github.orionlibs.javollama.core.Role;
 import io.github.orionlibs.javollama.core.State;
 import io.github.orionlibs.javollama.core.sampler.Sampler;
 import io.github.orionlibs.javollama.core.sampler.SamplerSelector;
+import io.github.orionlibs.javollama.core.utils.Parallel;
 import io.github.orionlibs.javollama.llama.LlamaChatFormat;
 import io.github.orionlibs.javollama.llama.LlamaModelLoader;
 import io.github.orionlibs.javollama.llama.LlamaProcessor;
@@ -15,18 +16,28 @@ import io.github.orionlibs.javollama.options.LLMOptions;
 import io.github.orionlibs.javollama.options.LLMOptionsBuilder;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class LLM
 {
     private LLMOptions options;
-    private Sampler sampler;
+    private float temperature;
+    private float randomness;
     private LlamaProcessor model;
     private boolean isModelLoaded;
+    // sessions that may hold a key/value cache, least recently used first
+    private final LinkedHashSet<ChatSession> chatSessions = new LinkedHashSet<>();
+    private int maximumChatSessions;
+    private long chatSessionIdleTimeoutNanos;
+    private Path chatSessionSnapshotDirectory;
 
 
     public LLM() throws IOException
@@ -44,9 +55,110 @@ public class LLM
     }
 
 
+    /**
+     * Serves chat sessions from a model loaded elsewhere, with no idle timeout.
+     */
+    LLM(LlamaProcessor model, int maximumChatSessions, Path chatSessionSnapshotDirectory)
+    {
+        this.model = model;
+        this.isModelLoaded = true;
+        this.maximumChatSessions = Math.max(1, maximumChatSessions);
+        this.chatSessionSnapshotDirectory = chatSessionSnapshotDirectory;
+    }
+
+
     public Response runLLM(String prompt)
     {
-        return runPrompt(model, sampler, options, prompt);
+        return runPrompt(model, newSampler(), options, prompt);
+    }
+
+
+    /**
+     * Like {@link #runLLM(String)}, but decodes the answer together with the other prompts submitted concurrently, in
+     * batches of up to {@code javollama.batch.size.maximum} sequences.
+     */
+    public CompletableFuture<Response> submitLLM(String prompt)
+    {
+        State state = model.acquireState();
+        ChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        CompletableFuture<Response> response;
+        try
+        {
+            response = model.submit(state, promptTokens(chatFormat, prompt), stopTokens, (int)options.getOptionValue("maximumTokensToProduce"), newSampler(), null);
+        }
+        catch(RuntimeException e)
+        {
+            model.releaseState(state);
+            throw e;
+        }
+        return response.whenComplete((r, e) -> model.releaseState(state))
+                        .thenApply(r -> appendContent(r, stopTokens));
+    }
+
+
+    /**
+     * Starts a conversation that keeps its key/value cache between turns, see {@link ChatSession}.
+     *
+     * @param systemPrompt the system message of the conversation, null for none
+     */
+    public ChatSession startChatSession(String systemPrompt)
+    {
+        return new ChatSession(this, model, newSampler(), (int)options.getOptionValue("maximumTokensToProduce"), chatSessionSnapshotDirectory, systemPrompt);
+    }
+
+
+    /**
+     * Called at the start of every turn of a session, evicts the caches of the sessions idle for longer than the idle
+     * timeout and of the least recently used ones over the maximum number of sessions.
+     */
+    void chatSessionUsed(ChatSession session)
+    {
+        List<ChatSession> evicted = new ArrayList<>();
+        synchronized(chatSessions)
+        {
+            chatSessions.remove(session);
+            chatSessions.add(session);
+            long now = System.nanoTime();
+            int size = chatSessions.size();
+            Iterator<ChatSession> iterator = chatSessions.iterator();
+            while(iterator.hasNext())
+            {
+                ChatSession idleSession = iterator.next();
+                if(idleSession == session)
+                {
+                    break;
+                }
+                boolean expired = chatSessionIdleTimeoutNanos > 0 && now - idleSession.lastUsedNanos() > chatSessionIdleTimeoutNanos;
+                if(expired || size > maximumChatSessions)
+                {
+                    iterator.remove();
+                    evicted.add(idleSession);
+                    size--;
+                }
+            }
+        }
+        // saving snapshots writes to disk, the other sessions go on meanwhile
+        for(ChatSession idleSession : evicted)
+        {
+            if(!idleSession.evictIfIdle())
+            {
+                // in the middle of a turn, which puts it back anyway
+                synchronized(chatSessions)
+                {
+                    chatSessions.add(idleSession);
+                }
+            }
+        }
+    }
+
+
+    void chatSessionClosed(ChatSession session)
+    {
+        synchronized(chatSessions)
+        {
+            chatSessions.remove(session);
+        }
     }
 
 
@@ -61,19 +173,49 @@ public class LLM
         if(!isModelLoaded)
         {
             Path llmModelPath = Paths.get((String)options.getOptionValue("llmModelPath"));
-            float temperature = (float)options.getOptionValue("temperature");
-            float randomness = (float)options.getOptionValue("randomness");
-            model = new LlamaModelLoader().loadModel(llmModelPath, (int)options.getOptionValue("maximumTokensToProduce"));
-            sampler = SamplerSelector.selectSampler(model.getConfiguration().vocabularySize, temperature, randomness);
+            temperature = (float)options.getOptionValue("temperature");
+            randomness = (float)options.getOptionValue("randomness");
+            Parallel.configure((int)options.getOptionValue("inferenceThreads"));
+            maximumChatSessions = Math.max(1, (int)options.getOptionValue("maximumChatSessions"));
+            chatSessionIdleTimeoutNanos = (int)options.getOptionValue("chatSessionIdleTimeoutSeconds") * 1_000_000_000L;
+            String snapshotDirectory = (String)options.getOptionValue("chatSessionSnapshotDirectory");
+            chatSessionSnapshotDirectory = snapshotDirectory == null || snapshotDirectory.isBlank() ? null : Files.createDirectories(Paths.get(snapshotDirectory));
+            model = new LlamaModelLoader(options).loadModel(llmModelPath, (int)options.getOptionValue("maximumTokensToProduce"));
             isModelLoaded = true;
         }
     }
 
 
+    /**
+     * A sampler for a single request, samplers hold per-request scratch and random state.
+     */
+    private Sampler newSampler()
+    {
+        return SamplerSelector.selectSampler(model.getConfiguration().vocabularySize, temperature, randomness);
+    }
+
+
     private Response runPrompt(LlamaProcessor model, Sampler sampler, LLMOptions options, String prompt)
     {
-        State state = model.createNewState();
+        State state = model.acquireState();
         ChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+        Set<Integer> stopTokens = chatFormat.getStopTokens();
+        Response response;
+        try
+        {
+            response = model.generateTokens(state, promptTokens(chatFormat, prompt), stopTokens, (int)options.getOptionValue("maximumTokensToProduce"), sampler, null);
+        }
+        finally
+        {
+            // the state and its key/value cache blocks go back to the model for the next prompt
+            model.releaseState(state);
+        }
+        return appendContent(response, stopTokens);
+    }
+
+
+    private static List<Integer> promptTokens(ChatFormat chatFormat, String prompt)
+    {
         List<Integer> promptTokens = new ArrayList<>();
         promptTokens.add(chatFormat.getBeginOfText());
         if(prompt != null)
@@ -82,8 +224,12 @@ public class LLM
         }
         promptTokens.addAll(chatFormat.encodeMessage(new Message(Role.USER, prompt)));
         promptTokens.addAll(chatFormat.encodeHeader(new Message(Role.ASSISTANT, "")));
-        Set<Integer> stopTokens = chatFormat.getStopTokens();
-        Response response = model.generateTokens(model, state, 0, promptTokens, stopTokens, (int)options.getOptionValue("maximumTokensToProduce"), sampler, null);
+        return promptTokens;
+    }
+
+
+    private Response appendContent(Response response, Set<Integer> stopTokens)
+    {
         if(!response.getResponseTokens().isEmpty() && stopTokens.contains(response.getResponseTokens().getLast()))
         {
             response.getResponseTokens().removeLast();
@@ -92,4 +238,4 @@ public class LLM
         response.appendContent(responseText);
         return response;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,340 @@
+package io.github.orionlibs.javollama.core;
+
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Continuous batching of concurrent requests: a single thread runs the sequences of up to {@code maximumBatchSize}
+ * requests, each in its own {@link State}, one step at a time.
+ * <p>
+ * A step feeds the next token of every sequence in a single {@link LLMProcessor#forwardBatch(LLMProcessor, State[], int[], int[])
+ * batched forward pass}, so the weights are read once for the whole batch, while attention stays per sequence.
+ * Sequences leave the batch as soon as they are done and waiting requests join it between steps. A joining request
+ * ingests its prompt one block of {@link State#batchSize} tokens per step, so the sequences already running keep
+ * decoding meanwhile.
+ */
+public final class BatchScheduler implements AutoCloseable
+{
+    private final LLMProcessor model;
+    private final int maximumBatchSize;
+    private final BlockingQueue<Sequence> waiting = new LinkedBlockingQueue<>();
+    // accessed by the scheduler thread only
+    private final List<Sequence> running = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+
+    public BatchScheduler(LLMProcessor model, int maximumBatchSize)
+    {
+        if(maximumBatchSize < 1)
+        {
+            throw new IllegalArgumentException("maximum batch size must be positive, was " + maximumBatchSize);
+        }
+        this.model = model;
+        this.maximumBatchSize = maximumBatchSize;
+        this.thread = new Thread(this::run, "javollama-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Queues a request, generated as by {@link LLMProcessor#generateTokens}, the parameters have the same meaning. The
+     * state must not be used by the caller until the returned future completes.
+     */
+    public CompletableFuture<Response> submit(State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler,
+                    IntConsumer onTokenGenerated)
+    {
+        if(maxTokens < 0 || model.configuration.contextLength < maxTokens)
+        {
+            maxTokens = model.configuration.contextLength;
+        }
+        Sequence sequence = new Sequence(state, startPosition, List.copyOf(promptTokens), stopTokens, maxTokens, sampler, onTokenGenerated);
+        if(closed)
+        {
+            sequence.future.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+            return sequence.future;
+        }
+        waiting.add(sequence);
+        if(closed)
+        {
+            // raced with close(), which may have drained the queue already
+            sequence.future.completeExceptionally(new IllegalStateException("Scheduler is closed"));
+        }
+        return sequence.future;
+    }
+
+
+    /**
+     * Stops the scheduler, the requests not done yet fail.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        thread.interrupt();
+    }
+
+
+    /**
+     * @return whether the scheduler was closed, or stopped by an error, and fails any request
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    private void run()
+    {
+        try
+        {
+            while(!closed)
+            {
+                if(running.isEmpty())
+                {
+                    admit(waiting.take());
+                }
+                while(running.size() < maximumBatchSize && !waiting.isEmpty())
+                {
+                    admit(waiting.poll());
+                }
+                step();
+            }
+        }
+        catch(InterruptedException e)
+        {
+            // closed
+        }
+        catch(Error e)
+        {
+            closed = true;
+            fail(e);
+            throw e;
+        }
+        fail(new IllegalStateException("Scheduler is closed"));
+    }
+
+
+    private void admit(Sequence sequence)
+    {
+        sequence.startNanos = System.nanoTime();
+        sequence.token = sequence.state.latestToken;
+        if(sequence.position >= sequence.maxTokens)
+        {
+            sequence.finish();
+            return;
+        }
+        running.add(sequence);
+    }
+
+
+    /**
+     * Ingests one block of the prompt of every sequence still ingesting it, then decodes one token of every other one.
+     * A failure, e.g. of a forward pass or a callback, only fails the sequences it happened for.
+     */
+    private void step()
+    {
+        List<Sequence> decoding = new ArrayList<>(running.size());
+        for(Iterator<Sequence> iterator = running.iterator(); iterator.hasNext(); )
+        {
+            Sequence sequence = iterator.next();
+            if(sequence.promptIndex < sequence.prefillLength)
+            {
+                boolean done;
+                try
+                {
+                    done = sequence.prefill();
+                }
+                catch(RuntimeException e)
+                {
+                    sequence.future.completeExceptionally(e);
+                    done = true;
+                }
+                if(done)
+                {
+                    iterator.remove();
+                }
+            }
+            else
+            {
+                decoding.add(sequence);
+            }
+        }
+        if(decoding.isEmpty())
+        {
+            return;
+        }
+        int batchSize = decoding.size();
+        State[] states = new State[batchSize];
+        int[] tokens = new int[batchSize];
+        int[] positions = new int[batchSize];
+        for(int b = 0; b < batchSize; b++)
+        {
+            Sequence sequence = decoding.get(b);
+            states[b] = sequence.state;
+            tokens[b] = sequence.token;
+            positions[b] = sequence.position;
+        }
+        try
+        {
+            LLMProcessor.forwardBatch(model, states, tokens, positions);
+        }
+        catch(RuntimeException e)
+        {
+            // the step is lost for every sequence of the batch, their caches are left half written
+            for(Sequence sequence : decoding)
+            {
+                sequence.future.completeExceptionally(e);
+                running.remove(sequence);
+            }
+            return;
+        }
+        for(Sequence sequence : decoding)
+        {
+            boolean done;
+            try
+            {
+                done = sequence.advance();
+            }
+            catch(RuntimeException e)
+            {
+                // e.g. thrown by the callback, only fails its own request
+                sequence.future.completeExceptionally(e);
+                done = true;
+            }
+            if(done)
+            {
+                running.remove(sequence);
+            }
+        }
+    }
+
+
+    private void fail(Throwable e)
+    {
+        for(Sequence sequence : running)
+        {
+            sequence.future.completeExceptionally(e);
+        }
+        running.clear();
+        for(Iterator<Sequence> iterator = waiting.iterator(); iterator.hasNext(); )
+        {
+            iterator.next().future.completeExceptionally(e);
+            iterator.remove();
+        }
+    }
+
+
+    /**
+     * A request in the batch, the loop of {@link LLMProcessor#generateTokens} split into steps.
+     */
+    private final class Sequence
+    {
+        final State state;
+        final List<Integer> promptTokens;
+        final Set<Integer> stopTokens;
+        final int maxTokens;
+        final Sampler sampler;
+        final IntConsumer onTokenGenerated;
+        final Response response;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        // number of tokens ingested in blocks, the latest token and all the prompt tokens but the last one, unless the context runs out
+        final int prefillLength;
+        int position;
+        int promptIndex;
+        // next token to feed
+        int token;
+        long startNanos;
+
+
+        Sequence(State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated)
+        {
+            this.state = state;
+            this.position = startPosition;
+            this.promptTokens = promptTokens;
+            this.stopTokens = stopTokens;
+            this.maxTokens = maxTokens;
+            this.sampler = sampler;
+            this.onTokenGenerated = onTokenGenerated;
+            this.response = new Response(maxTokens);
+            this.prefillLength = Math.max(0, Math.min(promptTokens.size(), maxTokens - startPosition));
+        }
+
+
+        /**
+         * Ingests the next block of the prompt.
+         *
+         * @return whether the sequence is done, i.e. the prompt filled the context
+         */
+        boolean prefill()
+        {
+            int[] block = new int[Math.min(state.batchSize, prefillLength - promptIndex)];
+            for(int b = 0; b < block.length; b++)
+            {
+                block[b] = token;
+                token = promptTokens.get(promptIndex++);
+            }
+            LLMProcessor.forwardBatch(model, state, block, position);
+            position += block.length;
+            state.latestToken = token;
+            if(position >= maxTokens)
+            {
+                finish();
+                return true;
+            }
+            return false;
+        }
+
+
+        /**
+         * Picks the next token from the logits of the token just fed.
+         *
+         * @return whether the sequence is done
+         */
+        boolean advance()
+        {
+            int nextToken;
+            if(promptIndex < promptTokens.size())
+            {
+                // Force-pick token from prompt.
+                nextToken = promptTokens.get(promptIndex++);
+            }
+            else
+            {
+                nextToken = sampler.sampleToken(state.logits);
+                response.addResponseToken(nextToken);
+                if(onTokenGenerated != null)
+                {
+                    onTokenGenerated.accept(nextToken);
+                }
+                if(stopTokens.contains(nextToken))
+                {
+                    finish();
+                    return true;
+                }
+            }
+            state.latestToken = token = nextToken;
+            if(++position >= maxTokens)
+            {
+                finish();
+                return true;
+            }
+            return false;
+        }
+
+
+        void finish()
+        {
+            LLMProcessor.setStatistics(response, promptIndex + response.getResponseTokens().size(), startNanos);
+            future.complete(response);
+        }
+    }
+}
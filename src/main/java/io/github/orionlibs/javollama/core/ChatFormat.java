@@ -24,6 +24,12 @@ public abstract class ChatFormat
     public abstract Set<Integer> getStopTokens();
 
 
+    /**
+     * The token ending a message, which also ends an answer cut short before the model ended it.
+     */
+    public abstract int getEndOfTurn();
+
+
     public Tokenizer getTokenizer()
     {
         return tokenizer;
@@ -0,0 +1,272 @@
+package io.github.orionlibs.javollama.core;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.F16FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q8_0FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.SegmentFloatTensor;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of key/value cache blocks shared by the states of a model.
+ * <p>
+ * A block holds the keys and values of {@link #BLOCK_SIZE} consecutive positions for every layer. States take blocks
+ * as their position advances and give them back when released, so the memory of the caches follows the positions
+ * actually in use rather than the context length. Blocks are reference counted, so that full blocks can be shared, see
+ * {@link PrefixCache}. Released blocks are kept for reuse, up to {@link #FREE_BLOCKS} of them, the others are dropped
+ * and their memory reclaimed by the garbage collector, as are the blocks {@link #map mapped} from a snapshot, see
+ * {@link KVCacheSnapshot}.
+ */
+public final class KVBlockPool
+{
+    // number of positions per block
+    public static final int BLOCK_SIZE = Integer.parseInt(System.getProperty("llama.KVCacheBlockSize", "64"));
+    // number of released blocks kept for reuse, by default enough for one sequence of the whole context length
+    public static final int FREE_BLOCKS = Integer.parseInt(System.getProperty("llama.KVCacheFreeBlocks", "-1"));
+    private final GGUFType type;
+    private final int numberOfLayers;
+    private final int kvDim;
+    private final int maximumFreeBlocks;
+    private final Deque<Block> freeBlocks = new ArrayDeque<>();
+    private int allocatedBlocks;
+
+
+    /**
+     * @param type format the cache is stored in, {@link GGUFType#F32}, {@link GGUFType#F16} or {@link GGUFType#Q8_0};
+     *             Q8_0 needs a head size that is a multiple of its block size
+     */
+    public KVBlockPool(Configuration config, GGUFType type)
+    {
+        this.type = type;
+        this.numberOfLayers = config.numberOfLayers;
+        this.kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        this.maximumFreeBlocks = FREE_BLOCKS >= 0 ? FREE_BLOCKS : (config.contextLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if(type != GGUFType.F32 && type != GGUFType.F16 && type != GGUFType.Q8_0)
+        {
+            throw new IllegalArgumentException("Key/value cache type " + type);
+        }
+        if(config.headSize % type.getBlockSize() != 0)
+        {
+            // each head must start a block, attention reads the cache head by head
+            throw new IllegalArgumentException("Head size " + config.headSize + " is not a multiple of the " + type + " block size");
+        }
+    }
+
+
+    public GGUFType type()
+    {
+        return type;
+    }
+
+
+    /**
+     * A free block, allocated if none is left, with a single reference held by the caller. Its contents are undefined.
+     */
+    public synchronized Block acquire()
+    {
+        Block block = freeBlocks.pollFirst();
+        if(block == null)
+        {
+            block = newBlock(allocate(), allocate(), true);
+            allocatedBlocks++;
+        }
+        block.references = 1;
+        return block;
+    }
+
+
+    /**
+     * A block over memory held elsewhere, e.g. a mapped file, in the layout of the blocks of this pool, with a single
+     * reference held by the caller. The block is dropped once its last reference is, it never becomes free.
+     */
+    public Block map(MemorySegment keys, MemorySegment values)
+    {
+        if(keys.byteSize() != segmentBytes() || values.byteSize() != segmentBytes())
+        {
+            throw new IllegalArgumentException("Key/value cache block of " + keys.byteSize() + " and " + values.byteSize() + " bytes, expected " + segmentBytes());
+        }
+        Block block = newBlock(keys, values, false);
+        block.references = 1;
+        return block;
+    }
+
+
+    /**
+     * Adds a reference to a block in use, e.g. when the block of one state is shared with another one.
+     */
+    public synchronized void retain(Block block)
+    {
+        assert block.references > 0;
+        block.references++;
+    }
+
+
+    /**
+     * Drops a reference to a block, the block is free again once the last one is dropped. It is kept for reuse unless
+     * {@link #FREE_BLOCKS} blocks are free already.
+     */
+    public synchronized void release(Block block)
+    {
+        assert block.references > 0;
+        if(--block.references == 0 && block.pooled)
+        {
+            if(freeBlocks.size() < maximumFreeBlocks)
+            {
+                freeBlocks.addFirst(block);
+            }
+            else
+            {
+                allocatedBlocks--;
+            }
+        }
+    }
+
+
+    /**
+     * Bytes of memory held by one block.
+     */
+    public long blockBytes()
+    {
+        return 2L * segmentBytes();
+    }
+
+
+    public int numberOfLayers()
+    {
+        return numberOfLayers;
+    }
+
+
+    public int kvDim()
+    {
+        return kvDim;
+    }
+
+
+    /**
+     * Number of blocks allocated and not dropped, in use or free.
+     */
+    public synchronized int allocatedBlocks()
+    {
+        return allocatedBlocks;
+    }
+
+
+    /**
+     * Number of free blocks kept for reuse.
+     */
+    public synchronized int freeBlocks()
+    {
+        return freeBlocks.size();
+    }
+
+
+    /**
+     * Bytes of memory held by the keys, or the values, of one block.
+     */
+    private long segmentBytes()
+    {
+        return layerBytes() * numberOfLayers;
+    }
+
+
+    private long layerBytes()
+    {
+        return (long)BLOCK_SIZE * kvDim / type.getBlockSize() * type.getTypeSize();
+    }
+
+
+    /**
+     * One off-heap allocation for the keys or the values of a block.
+     */
+    private MemorySegment allocate()
+    {
+        return Arena.ofAuto().allocate(segmentBytes(), 64);
+    }
+
+
+    private Block newBlock(MemorySegment keySegment, MemorySegment valueSegment, boolean pooled)
+    {
+        return new Block(keySegment, valueSegment, layers(keySegment), layers(valueSegment), pooled);
+    }
+
+
+    /**
+     * The keys or the values of a block sliced into one tensor per layer, same layout as the tensors of that type in a
+     * model file.
+     */
+    private FloatTensor[] layers(MemorySegment segment)
+    {
+        int layerSize = BLOCK_SIZE * kvDim;
+        long layerBytes = layerBytes();
+        FloatTensor[] layers = new FloatTensor[numberOfLayers];
+        for(int l = 0; l < numberOfLayers; l++)
+        {
+            MemorySegment layer = segment.asSlice(l * layerBytes, layerBytes);
+            layers[l] = switch(type)
+            {
+                case F32 -> new SegmentFloatTensor(layerSize, layer);
+                case F16 -> new F16FloatTensor(layerSize, layer);
+                default -> new Q8_0FloatTensor(layerSize, layer);
+            };
+        }
+        return layers;
+    }
+
+
+    /**
+     * Keys and values of {@link #BLOCK_SIZE} positions, per layer (n_layer, block_size, kv_dim). A block may be shared:
+     * it is written only by the state that acquired it, while it fills up, and read by every state that references it.
+     */
+    public static final class Block
+    {
+        private final MemorySegment keySegment;
+        private final MemorySegment valueSegment;
+        private final FloatTensor[] keys;
+        private final FloatTensor[] values;
+        // whether the block goes back to the pool once released
+        private final boolean pooled;
+        // guarded by the pool
+        private int references;
+
+
+        private Block(MemorySegment keySegment, MemorySegment valueSegment, FloatTensor[] keys, FloatTensor[] values, boolean pooled)
+        {
+            this.keySegment = keySegment;
+            this.valueSegment = valueSegment;
+            this.keys = keys;
+            this.values = values;
+            this.pooled = pooled;
+        }
+
+
+        public FloatTensor[] keys()
+        {
+            return keys;
+        }
+
+
+        public FloatTensor[] values()
+        {
+            return values;
+        }
+
+
+        /**
+         * The memory of the keys of every layer, (n_layer, block_size, kv_dim) in the format of the pool.
+         */
+        public MemorySegment keySegment()
+        {
+            return keySegment;
+        }
+
+
+        public MemorySegment valueSegment()
+        {
+            return valueSegment;
+        }
+    }
+}
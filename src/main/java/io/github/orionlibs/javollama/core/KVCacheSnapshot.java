@@ -0,0 +1,157 @@
+package io.github.orionlibs.javollama.core;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of the key/value cache of a {@link State} in a file, so that an idle sequence holds no memory and resumes
+ * without feeding the model its tokens again.
+ * <p>
+ * The file holds a header, then the blocks of the cache covering the positions in use, each as the keys then the values
+ * of every layer, in the format of the {@link KVBlockPool}. A restored state maps the file: its full blocks are views of
+ * the mapping, read from disk by the operating system when attention first touches them. Only the last block, still
+ * written to as the sequence advances, is copied into a block of the pool.
+ */
+public final class KVCacheSnapshot
+{
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final int MAGIC = 0x534B564A; // "JVKS" in little endian
+    private static final int VERSION = 1;
+    // header, padded so that the blocks keep the alignment of the pool
+    private static final long HEADER_BYTES = 64;
+
+
+    private KVCacheSnapshot()
+    {
+    }
+
+
+    /**
+     * Writes the key/value cache of positions {@code [0, position)} of {@code state}, and its latest token, i.e. the
+     * token to feed at {@code position}, to {@code path}.
+     */
+    public static void save(State state, int position, Path path) throws IOException
+    {
+        KVBlockPool pool = state.kvBlockPool;
+        int blockCount = blockCount(position);
+        if(position < 0 || state.blockCount() < blockCount)
+        {
+            throw new IllegalArgumentException("Position " + position + " is not in the key/value cache of " + state.blockCount() + " blocks");
+        }
+        long blockBytes = pool.blockBytes();
+        try(FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                        Arena arena = Arena.ofConfined())
+        {
+            MemorySegment file = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + blockCount * blockBytes, arena);
+            int[] header = {MAGIC, VERSION, pool.type().getId(), pool.numberOfLayers(), pool.kvDim(), KVBlockPool.BLOCK_SIZE, position, state.latestToken};
+            for(int i = 0; i < header.length; i++)
+            {
+                file.setAtIndex(INT_LE, i, header[i]);
+            }
+            for(int b = 0; b < blockCount; b++)
+            {
+                KVBlockPool.Block block = state.block(b);
+                long offset = HEADER_BYTES + b * blockBytes;
+                MemorySegment.copy(block.keySegment(), 0, file, offset, blockBytes / 2);
+                MemorySegment.copy(block.valueSegment(), 0, file, offset + blockBytes / 2, blockBytes / 2);
+            }
+            file.force();
+        }
+    }
+
+
+    /**
+     * Restores the key/value cache and the latest token saved in {@code path} into the empty cache of {@code state},
+     * whose pool must have the format of the snapshot.
+     *
+     * @return the position the sequence resumes at
+     */
+    public static int restore(State state, Path path) throws IOException
+    {
+        KVBlockPool pool = state.kvBlockPool;
+        MemorySegment file;
+        try(FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            // unmapped once every block viewing it is unreachable
+            file = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), Arena.ofAuto());
+        }
+        if(file.byteSize() < HEADER_BYTES || file.getAtIndex(INT_LE, 0) != MAGIC)
+        {
+            throw new IOException("Not a key/value cache snapshot: " + path);
+        }
+        if(file.getAtIndex(INT_LE, 1) != VERSION)
+        {
+            throw new IOException("Unsupported key/value cache snapshot version " + file.getAtIndex(INT_LE, 1) + ": " + path);
+        }
+        int typeId = file.getAtIndex(INT_LE, 2);
+        if(typeId < 0 || GGUFType.values().length <= typeId)
+        {
+            throw new IOException("Unknown GGUF type " + typeId + " in key/value cache snapshot: " + path);
+        }
+        GGUFType type = GGUFType.fromId(typeId);
+        int numberOfLayers = file.getAtIndex(INT_LE, 3);
+        int kvDim = file.getAtIndex(INT_LE, 4);
+        int blockSize = file.getAtIndex(INT_LE, 5);
+        if(type != pool.type() || numberOfLayers != pool.numberOfLayers() || kvDim != pool.kvDim() || blockSize != KVBlockPool.BLOCK_SIZE)
+        {
+            throw new IllegalArgumentException("Key/value cache snapshot of " + numberOfLayers + " layers of " + kvDim + " " + type + " values in blocks of " + blockSize
+                            + " positions does not fit a pool of " + pool.numberOfLayers() + " layers of " + pool.kvDim() + " " + pool.type() + " values in blocks of "
+                            + KVBlockPool.BLOCK_SIZE + " positions");
+        }
+        int position = file.getAtIndex(INT_LE, 6);
+        int latestToken = file.getAtIndex(INT_LE, 7);
+        int blockCount = blockCount(position);
+        long blockBytes = pool.blockBytes();
+        if(file.byteSize() != HEADER_BYTES + blockCount * blockBytes)
+        {
+            throw new IOException("Truncated key/value cache snapshot: " + path);
+        }
+        List<KVBlockPool.Block> blocks = new ArrayList<>(blockCount);
+        try
+        {
+            for(int b = 0; b < blockCount; b++)
+            {
+                MemorySegment keys = file.asSlice(HEADER_BYTES + b * blockBytes, blockBytes / 2);
+                MemorySegment values = file.asSlice(HEADER_BYTES + b * blockBytes + blockBytes / 2, blockBytes / 2);
+                if((b + 1) * KVBlockPool.BLOCK_SIZE <= position)
+                {
+                    blocks.add(pool.map(keys, values));
+                }
+                else
+                {
+                    KVBlockPool.Block block = pool.acquire();
+                    blocks.add(block);
+                    MemorySegment.copy(keys, 0, block.keySegment(), 0, blockBytes / 2);
+                    MemorySegment.copy(values, 0, block.valueSegment(), 0, blockBytes / 2);
+                }
+            }
+            state.attach(blocks);
+        }
+        finally
+        {
+            // the state holds its own references
+            for(KVBlockPool.Block block : blocks)
+            {
+                pool.release(block);
+            }
+        }
+        state.latestToken = latestToken;
+        return position;
+    }
+
+
+    private static int blockCount(int position)
+    {
+        return (position + KVBlockPool.BLOCK_SIZE - 1) / KVBlockPool.BLOCK_SIZE;
+    }
+}
@@ -3,17 +3,16 @@ package io.github.orionlibs.javollama.core;
 import io.github.orionlibs.javollama.core.sampler.Sampler;
 import io.github.orionlibs.javollama.core.tensor.FloatTensor;
 import io.github.orionlibs.javollama.core.utils.Parallel;
-import java.nio.FloatBuffer;
 import java.util.List;
 import java.util.Set;
 import java.util.function.IntConsumer;
 
 public abstract class LLMProcessor
 {
-    protected Configuration configuration;
-    protected Tokenizer tokenizer;
-    protected Weights weights;
-    private Response response;
+    // shared read-only by every request, the mutable buffers of a request are in its State
+    protected final Configuration configuration;
+    protected final Tokenizer tokenizer;
+    protected final Weights weights;
 
 
     public LLMProcessor(Configuration configuration, Tokenizer tokenizer, Weights weights)
@@ -27,16 +26,194 @@ public abstract class LLMProcessor
     public abstract State createNewState();
 
 
-    static void rmsnorm(FloatTensor out, FloatTensor x, FloatBuffer weight, int size, float rmsNormEps)
+    static void rmsnorm(FloatTensor out, FloatTensor x, FloatTensor weight, int size, float rmsNormEps)
     {
         // calculate sum of squares
-        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
+        float ss = x.dot(0, x, 0, size);
         ss /= size;
         ss += rmsNormEps;
         ss = (float)(1.0 / Math.sqrt(ss));
         // normalize and scale
-        final float finalss = ss; // for the lambda
-        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+        out.normalizeInPlace(x, weight, size, ss);
+    }
+
+
+    static void rope(Configuration config, Weights weights, FloatTensor q, FloatTensor k, int position)
+    {
+        // RoPE relative positional encoding: complex-valued rotate q and k in each head
+        weights.rope.rotate(q, config.numberOfHeads, position);
+        weights.rope.rotate(k, config.numberOfKeyValueHeads, position);
+    }
+
+
+    /**
+     * Multihead attention of the query in {@code state.q} at {@code position}, written to {@code state.xb}.
+     * <p>
+     * Up to {@link State#SPLIT_KV_THRESHOLD} positions each task attends one key/value head over the whole cache. Past
+     * it there are too few heads to keep every thread busy, so the positions are also split into contiguous chunks,
+     * one task per head and chunk, and the partial results of the chunks are merged afterwards.
+     */
+    static void attention(Configuration config, State state, int layer, int position)
+    {
+        attention(config, state, layer, position, attentionSplits(config, state, position));
+    }
+
+
+    /**
+     * Same as {@link #attention(Configuration, State, int, int)} with the positions split into {@code splits} chunks.
+     */
+    static void attention(Configuration config, State state, int layer, int position, int splits)
+    {
+        if(splits == 1)
+        {
+            // iterate over all key/value heads, each with the query heads sharing it
+            Parallel.parallelFor(0, config.numberOfKeyValueHeads, kvHead -> attentionGroup(config, state, layer, state.q, state.xb, kvHead, position));
+            return;
+        }
+        state.reserveSplits(splits);
+        int length = position + 1;
+        Parallel.parallelFor(0, config.numberOfKeyValueHeads * splits, task -> {
+            int kvHead = task / splits;
+            int split = task % splits;
+            int start = (int)((long)length * split / splits);
+            int end = (int)((long)length * (split + 1) / splits);
+            attendRange(config, state, state.splitAtt[split], layer, state.q, state.splitOut[split], kvHead, start, end, state.splitMax[split], state.splitSum[split]);
+        });
+        Parallel.parallelFor(0, config.numberOfHeads, h -> mergeSplits(config, state, state.xb, h, splits));
+    }
+
+
+    /**
+     * Number of chunks the positions {@code 0..position} are split into, 1 below the threshold. Enough chunks to give
+     * every thread a task, but never more than there are tiles, so a chunk is not shorter than a tile.
+     */
+    static int attentionSplits(Configuration config, State state, int position)
+    {
+        int length = position + 1;
+        if(length < State.SPLIT_KV_THRESHOLD)
+        {
+            return 1;
+        }
+        int wanted = (Parallel.parallelism() + config.numberOfKeyValueHeads - 1) / config.numberOfKeyValueHeads;
+        int tiles = length / State.ATTENTION_TILE_SIZE;
+        return Math.max(1, Math.min(Math.min(wanted, tiles), state.maxAttentionSplits));
+    }
+
+
+    /**
+     * Attention of the query heads that share key/value head {@code kvHead} for the query at {@code position}, written to
+     * {@code out[h * headSize ... (h + 1) * headSize)} for each of these heads {@code h}.
+     */
+    static void attentionGroup(Configuration config, State state, int layer, FloatTensor q, FloatTensor out, int kvHead, int position)
+    {
+        attendRange(config, state, state.att, layer, q, out, kvHead, 0, position + 1, state.attMax, state.attSum);
+        int headSize = config.headSize;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads;
+        for(int h = kvHead * kvMul; h < (kvHead + 1) * kvMul; h++)
+        {
+            // softmax normalization, from 0..position inclusively
+            out.divideInPlace(h * headSize, headSize, state.attSum[h]);
+        }
+    }
+
+
+    /**
+     * Unnormalized attention of the query heads that share key/value head {@code kvHead} over the positions
+     * {@code [start, end)}. For each of these heads {@code h}, the weighted sum of the values, scaled by the exponential
+     * of the scores minus their maximum, is written to {@code out[h * headSize ... (h + 1) * headSize)}, the maximum
+     * score to {@code maxScores[h]} and the sum of the exponentials to {@code sums[h]}.
+     * <p>
+     * Every cached key and value row of the shared head is loaded once and used by all {@code kvMul} query heads of the
+     * group. The rows are streamed once, {@link State#ATTENTION_TILE_SIZE} positions at a time, with an online softmax
+     * per query head: the running maximum and sum of the exponentiated scores are updated per tile and the partial
+     * weighted sum of the values is rescaled whenever the maximum grows, so only the scores of one tile are ever held.
+     */
+    static void attendRange(Configuration config, State state, FloatTensor att, int layer, FloatTensor q, FloatTensor out, int kvHead, int start, int end, float[] maxScores, float[] sums)
+    {
+        int headSize = config.headSize;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
+        float sqrtHeadSize = (float)Math.sqrt(headSize);
+        int tileSize = State.ATTENTION_TILE_SIZE;
+        // query heads [firstHead, lastHead) share this key/value head
+        int firstHead = kvHead * kvMul;
+        int lastHead = firstHead + kvMul;
+        // key and value vectors of this head, at position t: state.cacheOffset(t) + kvHeadOffset in the block of t
+        int kvHeadOffset = kvHead * headSize;
+        for(int h = firstHead; h < lastHead; h++)
+        {
+            maxScores[h] = Float.NEGATIVE_INFINITY;
+            sums[h] = 0f;
+            // weighted sum of the values, store back into out
+            out.fillInPlace(h * headSize, headSize, 0f);
+        }
+        // iterate over the timesteps of the range
+        for(int tileStart = start; tileStart < end; tileStart += tileSize)
+        {
+            int tileLength = Math.min(tileSize, end - tileStart);
+            for(int i = 0; i < tileLength; i++)
+            {
+                FloatTensor keyCache = state.keyCache(layer, tileStart + i);
+                int keyCacheOffset = state.cacheOffset(tileStart + i) + kvHeadOffset;
+                for(int h = firstHead; h < lastHead; h++)
+                {
+                    // calculate the attention score as the dot product of q and k
+                    float score = q.dot(h * headSize, keyCache, keyCacheOffset, headSize);
+                    // attention scores of the current tile for head h
+                    att.setFloat(h * tileSize + i, score / sqrtHeadSize);
+                }
+            }
+            for(int h = firstHead; h < lastHead; h++)
+            {
+                float tileMax = att.max(h * tileSize, tileLength);
+                if(tileMax > maxScores[h])
+                {
+                    if(maxScores[h] != Float.NEGATIVE_INFINITY)
+                    {
+                        // rescale what was accumulated against the previous maximum
+                        float correction = (float)Math.exp(maxScores[h] - tileMax);
+                        sums[h] *= correction;
+                        out.scaleInPlace(h * headSize, headSize, correction);
+                    }
+                    maxScores[h] = tileMax;
+                }
+                sums[h] += att.expInPlace(h * tileSize, tileLength, maxScores[h]);
+            }
+            for(int i = 0; i < tileLength; i++)
+            {
+                FloatTensor valueCache = state.valueCache(layer, tileStart + i);
+                int vOffset = state.cacheOffset(tileStart + i) + kvHeadOffset;
+                for(int h = firstHead; h < lastHead; h++)
+                {
+                    // accumulate the weighted value into out
+                    out.saxpyInPlace(h * headSize, valueCache, vOffset, headSize, att.getFloat(h * tileSize + i));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Combines the partial results of the {@code splits} chunks for query head {@code h} into {@code out}. Each chunk was
+     * exponentiated against its own maximum, so its weighted sum and its sum are rescaled to the overall maximum first.
+     */
+    static void mergeSplits(Configuration config, State state, FloatTensor out, int h, int splits)
+    {
+        int headSize = config.headSize;
+        float maxScore = Float.NEGATIVE_INFINITY;
+        for(int split = 0; split < splits; split++)
+        {
+            maxScore = Math.max(maxScore, state.splitMax[split][h]);
+        }
+        float sum = 0f;
+        out.fillInPlace(h * headSize, headSize, 0f);
+        for(int split = 0; split < splits; split++)
+        {
+            float correction = (float)Math.exp(state.splitMax[split][h] - maxScore);
+            sum += state.splitSum[split][h] * correction;
+            out.saxpyInPlace(h * headSize, state.splitOut[split], h * headSize, headSize, correction);
+        }
+        // softmax normalization, from 0..position inclusively
+        out.divideInPlace(h * headSize, headSize, sum);
     }
 
 
@@ -46,10 +223,9 @@ public abstract class LLMProcessor
         Configuration config = model.configuration;
         Weights weights = model.weights;
         int dim = config.dim;
-        int headSize = config.headSize;
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
-        float sqrtHeadSize = (float)Math.sqrt(headSize);
+        // take the cache blocks this position needs
+        state.reserve(position + 1);
         // copy the token embedding into x
         weights.token_embedding_table.copyTo(token * dim, state.x, 0, dim);
         // forward all the layers
@@ -58,68 +234,22 @@ public abstract class LLMProcessor
             // attention rmsnorm
             rmsnorm(state.xb, state.x, weights.rms_att_weight[l], dim, config.rmsNormEps);
             // qkv matmuls for this position
-            weights.wq[l].matmul(state.xb, state.q, dim, dim);
-            weights.wk[l].matmul(state.xb, state.k, kvDim, dim);
-            weights.wv[l].matmul(state.xb, state.v, kvDim, dim);
-            // RoPE relative positional encoding: complex-valued rotate q and k in each head
-            for(int i = 0; i < dim; i += 2)
-            {
-                int head_dim = i % headSize;
-                float fcr = weights.freq_cis_real.get(position * (headSize / 2) + (head_dim / 2));
-                float fci = weights.freq_cis_imag.get(position * (headSize / 2) + (head_dim / 2));
-                int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
-                for(int v = 0; v < rotn; v++)
-                {
-                    FloatTensor vec = v == 0 ? state.q : state.k; // the vector to rotate (query or key)
-                    float v0 = vec.getFloat(i);
-                    float v1 = vec.getFloat(i + 1);
-                    vec.setFloat(i, v0 * fcr - v1 * fci);
-                    vec.setFloat(i + 1, v0 * fci + v1 * fcr);
-                }
+            FloatTensor[] qkv = {state.q, state.k, state.v};
+            int[] qkvDims = {dim, kvDim, kvDim};
+            if(weights.wqkv != null && weights.wqkv[l] != null)
+            {
+                weights.wqkv[l].matmul(state.xb, qkv, qkvDims, dim);
+            }
+            else
+            {
+                FloatTensor.matmul(state.xb, new FloatTensor[] {weights.wq[l], weights.wk[l], weights.wv[l]}, qkv, qkvDims, dim);
             }
+            rope(config, weights, state.q, state.k, position);
             // save key,value at this time step (position) to our kv cache
-            //int loff = l * config.seq_len * kvDim; // kv cache layer offset for convenience
-            state.k.copyTo(0, state.keyCache[l], position * kvDim, kvDim);
-            state.v.copyTo(0, state.valueCache[l], position * kvDim, kvDim);
-            int curLayer = l;
-            // multihead attention. iterate over all heads
-            Parallel.parallelFor(0, config.numberOfHeads, h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * headSize;
-                int qOffset = h * headSize;
-                // attention scores for this head
-                // float* att = s.att + h * config.seq_len;
-                int attOffset = h * config.contextLength;
-                // iterate over all timesteps, including the current one
-                for(int t = 0; t <= position; t++)
-                {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s.key_cache + loff + t * dim + h * headSize;
-                    int keyCacheOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // calculate the attention score as the dot product of q and k
-                    float score = state.q.dot(qOffset, state.keyCache[curLayer], keyCacheOffset, headSize);
-                    score /= sqrtHeadSize;
-                    // save the score to the attention buffer
-                    state.att.setFloat(attOffset + t, score);
-                }
-                // softmax the scores to get attention weights, from 0..position inclusively
-                state.att.softmaxInPlace(attOffset, position + 1);
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * headSize;
-                int xbOffset = h * headSize;
-                // memset(xb, 0, headSize * sizeof(float));
-                state.xb.fillInPlace(xbOffset, headSize, 0f);
-                for(int t = 0; t <= position; t++)
-                {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s.value_cache + loff + t * dim + h * headSize;
-                    int vOffset = /* loff + */ t * kvDim + (h / kvMul) * headSize;
-                    // get the attention weight for this timestep
-                    float a = state.att.getFloat(attOffset + t);
-                    // accumulate the weighted value into xb
-                    state.xb.saxpyInPlace(xbOffset, state.valueCache[curLayer], vOffset, headSize, a);
-                }
-            });
+            state.k.copyTo(0, state.keyCache(l, position), state.cacheOffset(position), kvDim);
+            state.v.copyTo(0, state.valueCache(l, position), state.cacheOffset(position), kvDim);
+            // multihead attention
+            attention(config, state, l, position);
             // final matmul to get the output of the attention
             weights.wo[l].matmul(state.xb, state.xb2, dim, dim);
             // residual connection back into x
@@ -127,14 +257,8 @@ public abstract class LLMProcessor
             // ffn rmsnorm
             rmsnorm(state.xb, state.x, weights.rms_ffn_weight[l], dim, config.rmsNormEps);
             // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
-            // first calculate self.w1(x) and self.w3(x)
-            weights.w1[l].matmul(state.xb, state.hb, config.hiddenDim, dim);
-            weights.w3[l].matmul(state.xb, state.hb2, config.hiddenDim, dim);
-            // SwiGLU non-linearity
-            // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
-            state.hb.mapInPlace(value -> value / (float)(1.0 + Math.exp(-value)));
-            // elementwise multiply with w3(x)
-            state.hb.multiplyInPlace(state.hb2);
+            // self.w1(x) and self.w3(x), the SwiGLU non-linearity and the elementwise multiply in a single pass
+            FloatTensor.swiglu(weights.w1[l], weights.w3[l], state.xb, state.hb, config.hiddenDim, dim);
             // final matmul to get the output of the ffn
             weights.w2[l].matmul(state.hb, state.xb, dim, config.hiddenDim);
             // residual connection
@@ -148,6 +272,189 @@ public abstract class LLMProcessor
     }
 
 
+    /**
+     * Ingests a block of prompt tokens at consecutive positions, the first one at {@code position}.
+     * <p>
+     * All matmuls are batched over the block, so the weights are read once per block instead of once per token.
+     * The key/value caches are filled for every position of the block; attention is causal, each token attends
+     * to the positions up to and including its own. The final rmsnorm and the classifier are skipped since the
+     * logits of ingested prompt tokens are never sampled.
+     *
+     * @param tokens   tokens to ingest, at most {@link State#batchSize} of them
+     * @param position position of the first token of the block
+     */
+    static void forwardBatch(LLMProcessor model, State state, int[] tokens, int position)
+    {
+        // a few convenience variables
+        Configuration config = model.configuration;
+        Weights weights = model.weights;
+        int dim = config.dim;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int batchSize = tokens.length;
+        assert batchSize <= state.batchSize;
+        // take the cache blocks the positions of the block need
+        state.reserve(position + batchSize);
+        // copy the token embeddings into x
+        for(int b = 0; b < batchSize; b++)
+        {
+            weights.token_embedding_table.copyTo(tokens[b] * dim, state.batchX[b], 0, dim);
+        }
+        // forward all the layers
+        for(int l = 0; l < config.numberOfLayers; l++)
+        {
+            // attention rmsnorm
+            for(int b = 0; b < batchSize; b++)
+            {
+                rmsnorm(state.batchXb[b], state.batchX[b], weights.rms_att_weight[l], dim, config.rmsNormEps);
+            }
+            // qkv matmuls for all the positions of the block
+            weights.wq[l].matmul(batchSize, state.batchXb, state.batchQ, dim, dim);
+            weights.wk[l].matmul(batchSize, state.batchXb, state.batchK, kvDim, dim);
+            weights.wv[l].matmul(batchSize, state.batchXb, state.batchV, kvDim, dim);
+            // save key,value of every position of the block to our kv cache before attending to them
+            for(int b = 0; b < batchSize; b++)
+            {
+                rope(config, weights, state.batchQ[b], state.batchK[b], position + b);
+                state.batchK[b].copyTo(0, state.keyCache(l, position + b), state.cacheOffset(position + b), kvDim);
+                state.batchV[b].copyTo(0, state.valueCache(l, position + b), state.cacheOffset(position + b), kvDim);
+            }
+            int curLayer = l;
+            // causal multihead attention. iterate over all key/value heads, each group of heads reuses its own attention scores buffer
+            Parallel.parallelFor(0, config.numberOfKeyValueHeads, kvHead -> {
+                for(int b = 0; b < batchSize; b++)
+                {
+                    attentionGroup(config, state, curLayer, state.batchQ[b], state.batchXb[b], kvHead, position + b);
+                }
+            });
+            // final matmul to get the output of the attention
+            weights.wo[l].matmul(batchSize, state.batchXb, state.batchXb2, dim, dim);
+            for(int b = 0; b < batchSize; b++)
+            {
+                // residual connection back into x
+                state.batchX[b].addInPlace(state.batchXb2[b]);
+                // ffn rmsnorm
+                rmsnorm(state.batchXb[b], state.batchX[b], weights.rms_ffn_weight[l], dim, config.rmsNormEps);
+            }
+            FloatTensor.swiglu(weights.w1[l], weights.w3[l], batchSize, state.batchXb, state.batchHb, config.hiddenDim, dim);
+            weights.w2[l].matmul(batchSize, state.batchHb, state.batchXb, dim, config.hiddenDim);
+            for(int b = 0; b < batchSize; b++)
+            {
+                // residual connection
+                state.batchX[b].addInPlace(state.batchXb[b]);
+            }
+        }
+    }
+
+
+    /**
+     * Decodes one token for each of several sequences at once: {@code tokens[b]} at {@code positions[b]} of
+     * {@code states[b]}, the logits of each written to its state.
+     * <p>
+     * The matmuls are batched over the sequences, so the weights are read once per step instead of once per sequence.
+     * Attention is per sequence, over its own key/value cache, one task per sequence and key/value head.
+     *
+     * @param states distinct states, one per sequence
+     */
+    static void forwardBatch(LLMProcessor model, State[] states, int[] tokens, int[] positions)
+    {
+        // a few convenience variables
+        Configuration config = model.configuration;
+        Weights weights = model.weights;
+        int dim = config.dim;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int batchSize = states.length;
+        // the buffers of every sequence, side by side for the batched matmuls
+        FloatTensor[] x = new FloatTensor[batchSize];
+        FloatTensor[] xb = new FloatTensor[batchSize];
+        FloatTensor[] xb2 = new FloatTensor[batchSize];
+        FloatTensor[] hb = new FloatTensor[batchSize];
+        FloatTensor[] q = new FloatTensor[batchSize];
+        FloatTensor[] k = new FloatTensor[batchSize];
+        FloatTensor[] v = new FloatTensor[batchSize];
+        FloatTensor[] logits = new FloatTensor[batchSize];
+        for(int b = 0; b < batchSize; b++)
+        {
+            State state = states[b];
+            x[b] = state.x;
+            xb[b] = state.xb;
+            xb2[b] = state.xb2;
+            hb[b] = state.hb;
+            q[b] = state.q;
+            k[b] = state.k;
+            v[b] = state.v;
+            logits[b] = state.logits;
+            // take the cache blocks this position needs
+            state.reserve(positions[b] + 1);
+            // copy the token embedding into x
+            weights.token_embedding_table.copyTo(tokens[b] * dim, state.x, 0, dim);
+        }
+        // forward all the layers
+        for(int l = 0; l < config.numberOfLayers; l++)
+        {
+            // attention rmsnorm
+            for(int b = 0; b < batchSize; b++)
+            {
+                rmsnorm(xb[b], x[b], weights.rms_att_weight[l], dim, config.rmsNormEps);
+            }
+            // qkv matmuls for all the sequences
+            weights.wq[l].matmul(batchSize, xb, q, dim, dim);
+            weights.wk[l].matmul(batchSize, xb, k, kvDim, dim);
+            weights.wv[l].matmul(batchSize, xb, v, kvDim, dim);
+            // save key,value of every sequence to its kv cache
+            for(int b = 0; b < batchSize; b++)
+            {
+                State state = states[b];
+                rope(config, weights, q[b], k[b], positions[b]);
+                k[b].copyTo(0, state.keyCache(l, positions[b]), state.cacheOffset(positions[b]), kvDim);
+                v[b].copyTo(0, state.valueCache(l, positions[b]), state.cacheOffset(positions[b]), kvDim);
+            }
+            int curLayer = l;
+            // multihead attention. iterate over all sequences and key/value heads, each sequence attends to its own cache
+            Parallel.parallelFor(0, batchSize * config.numberOfKeyValueHeads, task -> {
+                int b = task / config.numberOfKeyValueHeads;
+                attentionGroup(config, states[b], curLayer, q[b], xb[b], task % config.numberOfKeyValueHeads, positions[b]);
+            });
+            // final matmul to get the output of the attention
+            weights.wo[l].matmul(batchSize, xb, xb2, dim, dim);
+            for(int b = 0; b < batchSize; b++)
+            {
+                // residual connection back into x
+                x[b].addInPlace(xb2[b]);
+                // ffn rmsnorm
+                rmsnorm(xb[b], x[b], weights.rms_ffn_weight[l], dim, config.rmsNormEps);
+            }
+            FloatTensor.swiglu(weights.w1[l], weights.w3[l], batchSize, xb, hb, config.hiddenDim, dim);
+            weights.w2[l].matmul(batchSize, hb, xb, dim, config.hiddenDim);
+            for(int b = 0; b < batchSize; b++)
+            {
+                // residual connection
+                x[b].addInPlace(xb[b]);
+            }
+        }
+        // final rmsnorm
+        for(int b = 0; b < batchSize; b++)
+        {
+            rmsnorm(x[b], x[b], weights.rms_final_weight, dim, config.rmsNormEps);
+        }
+        // classifier into logits
+        weights.wcls.matmul(batchSize, x, logits, config.vocabularySize, dim);
+    }
+
+
+    /**
+     * Fills in the statistics of {@code response}, once {@code numberOfTokensGenerated} tokens, prompt tokens included,
+     * were fed to the model since {@code startNanos}.
+     */
+    static void setStatistics(Response response, int numberOfTokensGenerated, long startNanos)
+    {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        double tokenGenerationRate = numberOfTokensGenerated / (elapsedNanos / 1_000_000_000.0);
+        response.setTokenGenerationRate(tokenGenerationRate);
+        response.setNumberOfTokensGenerated(numberOfTokensGenerated);
+        response.setStatsFormatted(String.format("%.2f tokens/s (%d)%n", tokenGenerationRate, numberOfTokensGenerated));
+    }
+
+
     /**
      * LLM generation entry point, ingest prompt tokens and generates new tokens.
      *
@@ -169,16 +476,32 @@ public abstract class LLMProcessor
     public Response generateTokens(LLMProcessor model, State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler,
                     IntConsumer onTokenGenerated)
     {
-        response = new Response(maxTokens);
         long startNanos = System.nanoTime();
         if(maxTokens < 0 || model.configuration.contextLength < maxTokens)
         {
             maxTokens = model.configuration.contextLength;
         }
+        Response response = new Response(maxTokens);
         int token = state.latestToken; // BOS?
         int nextToken;
         int promptIndex = 0;
-        for(int position = startPosition; position < maxTokens; ++position)
+        int position = startPosition;
+        // Batched prefill: the logits of every token fed before the last prompt token are discarded (the next
+        // token is force-picked from the prompt), so those tokens are ingested in blocks without computing logits.
+        int prefillLength = Math.max(0, Math.min(promptTokens.size(), maxTokens - startPosition));
+        while(promptIndex < prefillLength)
+        {
+            int[] block = new int[Math.min(state.batchSize, prefillLength - promptIndex)];
+            for(int b = 0; b < block.length; b++)
+            {
+                block[b] = token;
+                token = promptTokens.get(promptIndex++);
+            }
+            forwardBatch(model, state, block, position);
+            position += block.length;
+            state.latestToken = token;
+        }
+        for(; position < maxTokens; ++position)
         {
             forward(model, state, token, position);
             if(promptIndex < promptTokens.size())
@@ -201,12 +524,7 @@ public abstract class LLMProcessor
             }
             state.latestToken = token = nextToken;
         }
-        long elapsedNanos = System.nanoTime() - startNanos;
-        int numberOfTokensGenerated = promptIndex + response.getResponseTokens().size();
-        double tokenGenerationRate = numberOfTokensGenerated / (elapsedNanos / 1_000_000_000.0);
-        response.setTokenGenerationRate(tokenGenerationRate);
-        response.setNumberOfTokensGenerated(numberOfTokensGenerated);
-        response.setStatsFormatted(String.format("%.2f tokens/s (%d)%n", tokenGenerationRate, numberOfTokensGenerated));
+        setStatistics(response, promptIndex + response.getResponseTokens().size(), startNanos);
         return response;
     }
 }
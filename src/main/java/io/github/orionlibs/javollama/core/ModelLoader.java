@@ -1,11 +1,25 @@
 package io.github.orionlibs.javollama.core;
 
 import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.BF16FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.F16FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.F32FloatTensor;
 import io.github.orionlibs.javollama.core.tensor.FloatTensor;
 import io.github.orionlibs.javollama.core.tensor.GGUFTensorEntry;
+import io.github.orionlibs.javollama.core.tensor.InterleavedFloatTensor;
 import io.github.orionlibs.javollama.core.tensor.Q4_0FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q4_1FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q4_KFloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q5_0FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q5_1FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q5_KFloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q6_KFloatTensor;
 import io.github.orionlibs.javollama.core.tensor.Q8_0FloatTensor;
+import io.github.orionlibs.javollama.core.utils.Parallel;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.file.Path;
@@ -14,6 +28,9 @@ import java.util.function.IntFunction;
 
 public abstract class ModelLoader
 {
+    private static final int DEQUANTIZE_CHUNK = 1 << 16;
+    private static final ValueLayout.OfFloat JAVA_FLOAT_LE = ValueLayout.JAVA_FLOAT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
     protected String TOKENIZER_MODEL;
     protected String PATTERN;
 
@@ -48,14 +65,83 @@ public abstract class ModelLoader
         GGUFType ggmlType = entry.ggmlType();
         return switch(ggmlType)
         {
-            //case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F16 -> new F16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case BF16 -> new BF16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q8_0 -> new Q8_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             case Q4_0 -> new Q4_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_1 -> new Q4_1FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_0 -> new Q5_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_1 -> new Q5_1FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_K -> new Q4_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q5_K -> new Q5_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q6_K -> new Q6_KFloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
             default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
         };
     }
 
 
+    /**
+     * Decodes a tensor once into an off-heap F16 or F32 copy, trading memory for matmuls that no longer decode the
+     * quantized blocks on every token. F32 tensors and tensors already in the requested type are returned as they are.
+     * BF16 tensors are always decoded to F32: they have the exponent range of F32, F16 would overflow past 65504.
+     */
+    public static GGUFTensorEntry dequantize(GGUFTensorEntry entry, GGUFType requestedType)
+    {
+        if(requestedType != GGUFType.F16 && requestedType != GGUFType.F32)
+        {
+            throw new IllegalArgumentException("Dequantization to " + requestedType);
+        }
+        GGUFType ggmlType = entry.ggmlType() == GGUFType.BF16 ? GGUFType.F32 : requestedType;
+        if(entry.ggmlType() == ggmlType || entry.ggmlType() == GGUFType.F32)
+        {
+            return entry;
+        }
+        FloatTensor source = loadQuantized(entry);
+        int size = source.size();
+        MemorySegment memorySegment = Arena.ofAuto().allocate((long)size * ggmlType.getTypeSize(), 64);
+        int chunks = (size + DEQUANTIZE_CHUNK - 1) / DEQUANTIZE_CHUNK;
+        Parallel.parallelFor(0, chunks, chunk -> {
+            int end = Math.min(size, (chunk + 1) * DEQUANTIZE_CHUNK);
+            for(int i = chunk * DEQUANTIZE_CHUNK; i < end; i++)
+            {
+                float value = source.getFloat(i);
+                if(ggmlType == GGUFType.F32)
+                {
+                    memorySegment.setAtIndex(JAVA_FLOAT_LE, i, value);
+                }
+                else
+                {
+                    memorySegment.setAtIndex(JAVA_SHORT_LE, i, Float.floatToFloat16(value));
+                }
+            }
+        });
+        return new GGUFTensorEntry(entry.mappedFile(), entry.name(), ggmlType, entry.shape(), memorySegment);
+    }
+
+
+    /**
+     * Loads a matmul weight. With {@code repack} set, formats that have an {@link InterleavedFloatTensor} layout are
+     * copied into it, everything else, and everything without {@code repack}, stays a zero-copy view of the mapped file.
+     */
+    public static FloatTensor loadWeight(GGUFTensorEntry entry, boolean repack)
+    {
+        FloatTensor repacked = repack ? InterleavedFloatTensor.repack(entry) : null;
+        return repacked != null ? repacked : loadQuantized(entry);
+    }
+
+
+    public static FloatTensor[] loadArrayOfWeights(int size, IntFunction<GGUFTensorEntry> getTensorEntry, boolean repack)
+    {
+        FloatTensor[] array = new FloatTensor[size];
+        for(int i = 0; i < size; i++)
+        {
+            array[i] = loadWeight(getTensorEntry.apply(i), repack);
+        }
+        return array;
+    }
+
+
     public static FloatTensor[] loadArrayOfQuantized(int size, IntFunction<GGUFTensorEntry> getTensorEntry)
     {
         FloatTensor[] array = new FloatTensor[size];
@@ -67,6 +153,48 @@ public abstract class ModelLoader
     }
 
 
+    /**
+     * Copies tensors of the same type and row length into one off-heap tensor, stacked row after row.
+     * Returns null when the tensors cannot be stacked, i.e. their types or row lengths differ.
+     */
+    public static GGUFTensorEntry stack(String name, GGUFTensorEntry... entries)
+    {
+        GGUFType ggmlType = entries[0].ggmlType();
+        int rowLength = entries[0].shape()[0];
+        long byteSize = 0;
+        int rows = 0;
+        for(GGUFTensorEntry entry : entries)
+        {
+            if(entry.ggmlType() != ggmlType || entry.shape().length != 2 || entry.shape()[0] != rowLength)
+            {
+                return null;
+            }
+            byteSize += entry.memorySegment().byteSize();
+            rows += entry.shape()[1];
+        }
+        MemorySegment memorySegment = Arena.ofAuto().allocate(byteSize, Long.BYTES);
+        long offset = 0;
+        for(GGUFTensorEntry entry : entries)
+        {
+            MemorySegment.copy(entry.memorySegment(), 0, memorySegment, offset, entry.memorySegment().byteSize());
+            offset += entry.memorySegment().byteSize();
+        }
+        return new GGUFTensorEntry(entries[0].mappedFile(), name, ggmlType, new int[] {rowLength, rows}, memorySegment);
+    }
+
+
+    /**
+     * The rows {@code [rowStart, rowStart + rows)} of a tensor, as a tensor entry sharing its memory.
+     */
+    public static GGUFTensorEntry slice(GGUFTensorEntry entry, String name, int rowStart, int rows)
+    {
+        int rowLength = entry.shape()[0];
+        long rowBytes = (long)rowLength / entry.ggmlType().getBlockSize() * entry.ggmlType().getTypeSize();
+        MemorySegment memorySegment = entry.memorySegment().asSlice(rowStart * rowBytes, rows * rowBytes);
+        return new GGUFTensorEntry(entry.mappedFile(), name, entry.ggmlType(), new int[] {rowLength, rows}, memorySegment);
+    }
+
+
     public static FloatBuffer[] loadArrayOfFloatBuffer(int size, IntFunction<GGUFTensorEntry> getTensorEntry)
     {
         FloatBuffer[] array = new FloatBuffer[size];
@@ -84,6 +212,17 @@ public abstract class ModelLoader
         return switch(ggmlType)
         {
             case F32 -> tensorEntry.memorySegment().asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            // half-precision norm weights are widened once, FloatBuffer has no half-precision view
+            case F16, BF16 ->
+            {
+                FloatTensor tensor = loadQuantized(tensorEntry);
+                float[] values = new float[tensor.size()];
+                for(int i = 0; i < values.length; i++)
+                {
+                    values[i] = tensor.getFloat(i);
+                }
+                yield FloatBuffer.wrap(values);
+            }
             default -> throw new UnsupportedOperationException("Conversion to " + ggmlType);
         };
     }
@@ -0,0 +1,178 @@
+package io.github.orionlibs.javollama.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Key/value cache blocks of token sequences seen by earlier requests, shared with the requests that start with the same
+ * tokens, e.g. a common system prompt.
+ * <p>
+ * The blocks are kept in a radix tree keyed by the token sequence, {@link KVBlockPool#BLOCK_SIZE} tokens per edge: the
+ * node reached through the tokens {@code [0, (i + 1) * block_size)} holds the block of positions
+ * {@code [i * block_size, (i + 1) * block_size)} computed for them. Only full blocks are cached, they are never written
+ * again. The tree holds one reference to each of its blocks. Over the budget, the least recently used leaves are
+ * evicted first, a block that is still attached to a state stays alive until the state releases it.
+ */
+public final class PrefixCache
+{
+    private final KVBlockPool kvBlockPool;
+    private final int maximumBlocks;
+    private final Node root = new Node(null, null, null);
+    // every node but the root, least recently used first
+    private final LinkedHashSet<Node> lru = new LinkedHashSet<>();
+
+
+    /**
+     * @param budgetBytes memory the cached blocks may hold, 0 disables the cache
+     */
+    public PrefixCache(KVBlockPool kvBlockPool, long budgetBytes)
+    {
+        this.kvBlockPool = kvBlockPool;
+        this.maximumBlocks = (int)Math.min(Integer.MAX_VALUE, budgetBytes / kvBlockPool.blockBytes());
+    }
+
+
+    /**
+     * Attaches the cached blocks of the longest cached prefix of {@code tokens} to the empty key/value cache of
+     * {@code state} and returns the number of positions they cover. At least the last token is left out, so that it is
+     * fed to the model for its logits.
+     *
+     * @param tokens the tokens fed to the model, from position 0
+     */
+    public synchronized int attach(State state, List<Integer> tokens)
+    {
+        List<KVBlockPool.Block> blocks = new ArrayList<>();
+        Node node = root;
+        for(int i = 0; (i + 1) * KVBlockPool.BLOCK_SIZE < tokens.size(); i++)
+        {
+            node = node.children.get(chunk(tokens, i));
+            if(node == null)
+            {
+                break;
+            }
+            touch(node);
+            blocks.add(node.block);
+        }
+        state.attach(blocks);
+        return blocks.size() * KVBlockPool.BLOCK_SIZE;
+    }
+
+
+    /**
+     * Caches the full blocks of {@code state} that hold {@code tokens}, once they have been fed to the model, and
+     * evicts the least recently used blocks over the budget.
+     *
+     * @param tokens the tokens fed to the model, from position 0
+     */
+    public synchronized void insert(State state, List<Integer> tokens)
+    {
+        if(maximumBlocks == 0)
+        {
+            return;
+        }
+        int fullBlocks = Math.min(tokens.size() / KVBlockPool.BLOCK_SIZE, state.blockCount());
+        Node node = root;
+        for(int i = 0; i < fullBlocks; i++)
+        {
+            Chunk chunk = chunk(tokens, i);
+            Node child = node.children.get(chunk);
+            if(child == null)
+            {
+                KVBlockPool.Block block = state.block(i);
+                kvBlockPool.retain(block);
+                child = new Node(node, chunk, block);
+                node.children.put(chunk, child);
+            }
+            touch(child);
+            node = child;
+        }
+        evict();
+    }
+
+
+    /**
+     * Number of blocks held by the cache.
+     */
+    public synchronized int size()
+    {
+        return lru.size();
+    }
+
+
+    private void touch(Node node)
+    {
+        lru.remove(node);
+        lru.add(node);
+    }
+
+
+    private void evict()
+    {
+        Iterator<Node> iterator = lru.iterator();
+        while(lru.size() > maximumBlocks && iterator.hasNext())
+        {
+            Node node = iterator.next();
+            if(node.children.isEmpty())
+            {
+                iterator.remove();
+                node.parent.children.remove(node.chunk);
+                kvBlockPool.release(node.block);
+                // its parent may have become a leaf, start over from the least recently used
+                iterator = lru.iterator();
+            }
+        }
+    }
+
+
+    private static Chunk chunk(List<Integer> tokens, int blockIndex)
+    {
+        int[] chunk = new int[KVBlockPool.BLOCK_SIZE];
+        for(int i = 0; i < chunk.length; i++)
+        {
+            chunk[i] = tokens.get(blockIndex * KVBlockPool.BLOCK_SIZE + i);
+        }
+        return new Chunk(chunk);
+    }
+
+
+    private static final class Node
+    {
+        final Node parent;
+        final Chunk chunk;
+        final KVBlockPool.Block block;
+        final Map<Chunk, Node> children = new HashMap<>();
+
+
+        Node(Node parent, Chunk chunk, KVBlockPool.Block block)
+        {
+            this.parent = parent;
+            this.chunk = chunk;
+            this.block = block;
+        }
+    }
+
+
+    /**
+     * The tokens of one block, compared by content.
+     */
+    private record Chunk(int[] tokens)
+    {
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Chunk chunk && Arrays.equals(tokens, chunk.tokens);
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(tokens);
+        }
+    }
+}
@@ -1,48 +1,154 @@
 package io.github.orionlibs.javollama.core;
 
-import io.github.orionlibs.javollama.core.utils.Pair;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Rotary position embeddings: the cosine and sine of the rotation angle of every pair of a head, for every position.
+ * <p>
+ * The tables are computed on demand, {@link #BLOCK_SIZE} positions at a time, the first time a position of a block is
+ * rotated, and a bounded number of blocks is kept, the least recently used one making room for a new one. A sequence
+ * visits its positions in increasing order, and a step of a sequence touches at most two blocks, the one it is in and
+ * the next one when its chunk of the prompt crosses into it. With two blocks per sequence in flight, and at least
+ * {@link #CACHED_BLOCKS}, every sequence keeps the blocks it uses cached, and the memory held does not grow with the
+ * context length.
+ */
 public final class RotaryPositionEmbeddings
 {
-    public static Pair<float[], float[]> precomputeFreqsCis(int contextLength, int headSize, double theta,
-                    boolean ropeScaling, float scaleFactor, float loFreqFactor, float hiFreqFactor, float oldContextLength)
+    // number of positions whose tables are computed together
+    static final int BLOCK_SIZE = Integer.parseInt(System.getProperty("llama.RopeBlockSize", "256"));
+    // minimum number of blocks of tables kept
+    static final int CACHED_BLOCKS = Integer.parseInt(System.getProperty("llama.RopeCachedBlocks", "16"));
+    private final int contextLength;
+    private final int headSize;
+    // rotation frequency of each pair of a head (head_size/2,)
+    private final float[] frequencies;
+    private final int cachedBlocks;
+    // cached blocks by index, least recently used first, guarded by itself
+    private final Map<Integer, Block> blocks = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest)
+        {
+            return size() > cachedBlocks;
+        }
+    };
+
+
+    /**
+     * @param maximumSequences maximum number of sequences rotated concurrently, e.g. the maximum batch size of the
+     *                         {@link BatchScheduler}, the cache keeps two blocks for each
+     */
+    public RotaryPositionEmbeddings(int contextLength, int headSize, double theta,
+                    boolean ropeScaling, float scaleFactor, float loFreqFactor, float hiFreqFactor, float oldContextLength, int maximumSequences)
     {
         assert headSize % 2 == 0;
-        float[] cr = new float[contextLength * (headSize / 2)];
-        float[] ci = new float[contextLength * (headSize / 2)];
-        int n = 0;
-        for(int pos = 0; pos < contextLength; ++pos)
+        this.contextLength = contextLength;
+        this.headSize = headSize;
+        this.cachedBlocks = Math.max(CACHED_BLOCKS, 2 * maximumSequences);
+        this.frequencies = new float[headSize / 2];
+        for(int i = 0; i < headSize; i += 2)
         {
-            for(int i = 0; i < headSize; i += 2)
+            float freq = (float)(1.0 / Math.pow(theta, i / (double)headSize));
+            if(ropeScaling)
             {
-                float freq = (float)(1.0 / Math.pow(theta, i / (double)headSize));
-                if(ropeScaling)
+                // Llama 3.1 scaling
+                float loFreqWavelen = oldContextLength / loFreqFactor;
+                float hiFreqWavelen = oldContextLength / hiFreqFactor;
+                float wavelen = (float)(2.0 * Math.PI / freq);
+                if(wavelen < hiFreqWavelen)
                 {
-                    // Llama 3.1 scaling
-                    float loFreqWavelen = oldContextLength / loFreqFactor;
-                    float hiFreqWavelen = oldContextLength / hiFreqFactor;
-                    float wavelen = (float)(2.0 * Math.PI / freq);
-                    if(wavelen < hiFreqWavelen)
-                    {
-                        freq = freq;
-                    }
-                    else if(wavelen > loFreqWavelen)
-                    {
-                        freq = freq / scaleFactor;
-                    }
-                    else
-                    {
-                        float smooth = (oldContextLength / wavelen - loFreqFactor) / (hiFreqFactor - loFreqFactor);
-                        freq = (1.0f - smooth) * freq / scaleFactor + smooth * freq;
-                    }
+                    freq = freq;
                 }
+                else if(wavelen > loFreqWavelen)
+                {
+                    freq = freq / scaleFactor;
+                }
+                else
+                {
+                    float smooth = (oldContextLength / wavelen - loFreqFactor) / (hiFreqFactor - loFreqFactor);
+                    freq = (1.0f - smooth) * freq / scaleFactor + smooth * freq;
+                }
+            }
+            frequencies[i / 2] = freq;
+        }
+    }
+
+
+    int cachedBlocks()
+    {
+        return cachedBlocks;
+    }
+
+
+    /**
+     * Rotates the {@code numberOfHeads} consecutive heads of {@code vec} by the angles of {@code position}.
+     */
+    public void rotate(FloatTensor vec, int numberOfHeads, int position)
+    {
+        Objects.checkIndex(position, contextLength);
+        Block block = block(position / BLOCK_SIZE);
+        int tableOffset = (position % BLOCK_SIZE) * headSize;
+        for(int h = 0; h < numberOfHeads; h++)
+        {
+            vec.ropeInPlace(h * headSize, headSize, block.cos(), block.sin(), tableOffset);
+        }
+    }
+
+
+    private Block block(int index)
+    {
+        synchronized(blocks)
+        {
+            Block block = blocks.get(index);
+            if(block != null)
+            {
+                return block;
+            }
+        }
+        // computed outside the lock, threads racing on the same block compute the same tables, the first one stored wins
+        Block block = computeBlock(index);
+        synchronized(blocks)
+        {
+            Block cached = blocks.putIfAbsent(index, block);
+            return cached != null ? cached : block;
+        }
+    }
+
+
+    /**
+     * Tables of the positions of block {@code index}, {@code head_size} entries per position: both elements of a pair
+     * get the cosine of its angle, the first one the negated sine and the second one the sine, the layout
+     * {@link FloatTensor#ropeInPlace} expects.
+     */
+    private Block computeBlock(int index)
+    {
+        int firstPosition = index * BLOCK_SIZE;
+        int positions = Math.min(BLOCK_SIZE, contextLength - firstPosition);
+        float[] cos = new float[positions * headSize];
+        float[] sin = new float[positions * headSize];
+        int n = 0;
+        for(int pos = firstPosition; pos < firstPosition + positions; ++pos)
+        {
+            for(float freq : frequencies)
+            {
                 float val = pos * freq;
-                cr[n] = (float)Math.cos(val);
-                ci[n] = (float)Math.sin(val);
-                n++;
+                float fcr = (float)Math.cos(val);
+                float fci = (float)Math.sin(val);
+                cos[n] = fcr;
+                cos[n + 1] = fcr;
+                sin[n] = -fci;
+                sin[n + 1] = fci;
+                n += 2;
             }
         }
-        assert contextLength * (headSize / 2) == n;
-        return new Pair<>(cr, ci);
+        return new Block(cos, sin);
+    }
+
+
+    private record Block(float[] cos, float[] sin)
+    {
     }
 }
@@ -1,42 +1,232 @@
 package io.github.orionlibs.javollama.core;
 
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
 import io.github.orionlibs.javollama.core.tensor.ArrayFloatTensor;
 import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 import java.util.stream.Stream;
 
 public final class State
 {
+    // number of prompt tokens ingested together by a single batched forward pass
+    public static final int PREFILL_BATCH_SIZE = Integer.parseInt(System.getProperty("llama.PrefillBatchSize", "32"));
+    // number of positions whose attention scores are held at a time, attention streams over the kv cache tile by tile
+    public static final int ATTENTION_TILE_SIZE = Integer.parseInt(System.getProperty("llama.AttentionTileSize", "256"));
+    // context length from which decode attention also splits the positions across threads, not only the heads
+    public static final int SPLIT_KV_THRESHOLD = Integer.parseInt(System.getProperty("llama.SplitKVThreshold", "1024"));
+    // upper bound on the number of chunks the positions are split into
+    public static final int MAX_ATTENTION_SPLITS = Integer.parseInt(System.getProperty("llama.MaxAttentionSplits", String.valueOf(Runtime.getRuntime().availableProcessors())));
     // current wave of activations
     public final FloatTensor x; // activation at current time stamp (dim,)
     public final FloatTensor xb; // same, but inside a residual branch (dim,)
     public final FloatTensor xb2; // an additional buffer just for convenience (dim,)
     public final FloatTensor hb; // buffer for hidden dimension in the ffn (hidden_dim,)
-    public final FloatTensor hb2; // buffer for hidden dimension in the ffn (hidden_dim,)
     public final FloatTensor q; // query (dim,)
     public final FloatTensor k; // key (dim,)
     public final FloatTensor v; // value (dim,)
-    public final FloatTensor att; // buffer for scores/attention values (n_heads, seq_len)
+    public final FloatTensor att; // buffer for scores/attention values of the current tile (n_heads, attention_tile_size)
+    public final float[] attMax; // running maximum of the attention scores (n_heads,)
+    public final float[] attSum; // running sum of the exponentiated attention scores (n_heads,)
+    // split-kv attention buffers, one entry per chunk of the positions, allocated on the first split (splits,)
+    public final int maxAttentionSplits;
+    FloatTensor[] splitAtt = new FloatTensor[0]; // (splits, n_heads, attention_tile_size)
+    FloatTensor[] splitOut = new FloatTensor[0]; // unnormalized attention output of each chunk (splits, dim)
+    float[][] splitMax = new float[0][]; // (splits, n_heads)
+    float[][] splitSum = new float[0][]; // (splits, n_heads)
+    private final int numberOfHeads;
+    private final int dim;
     public final FloatTensor logits; // output logits
-    // kv cache
-    public final FloatTensor[] keyCache;   // (n_layer, seq_len, kv_dim)
-    public final FloatTensor[] valueCache; // (n_layer, seq_len, kv_dim)
+    // kv cache, paged: position p is at (p % block_size) * kv_dim in block p / block_size of the table
+    public final KVBlockPool kvBlockPool;
+    private final KVBlockPool.Block[] blockTable; // (seq_len / block_size,)
+    private int blockCount;
+    private final int kvDim;
+    // prefill buffers, one entry per token of the block being ingested (batch_size,)
+    public final int batchSize;
+    public final FloatTensor[] batchX; // (batch_size, dim)
+    public final FloatTensor[] batchXb; // (batch_size, dim)
+    public final FloatTensor[] batchXb2; // (batch_size, dim)
+    public final FloatTensor[] batchHb; // (batch_size, hidden_dim)
+    public final FloatTensor[] batchQ; // (batch_size, dim)
+    public final FloatTensor[] batchK; // (batch_size, kv_dim)
+    public final FloatTensor[] batchV; // (batch_size, kv_dim)
     public int latestToken;
 
 
     public State(Configuration config)
+    {
+        this(config, PREFILL_BATCH_SIZE);
+    }
+
+
+    public State(Configuration config, int batchSize)
+    {
+        this(config, batchSize, GGUFType.F32);
+    }
+
+
+    /**
+     * State with a key/value cache of its own, in the given format, see {@link KVBlockPool#KVBlockPool}.
+     */
+    public State(Configuration config, int batchSize, GGUFType kvCacheType)
+    {
+        this(config, batchSize, new KVBlockPool(config, kvCacheType));
+    }
+
+
+    /**
+     * State whose key/value cache takes its blocks from {@code kvBlockPool}, as positions are {@link #reserve reserved}.
+     */
+    public State(Configuration config, int batchSize, KVBlockPool kvBlockPool)
     {
         this.x = ArrayFloatTensor.allocate(config.dim);
         this.xb = ArrayFloatTensor.allocate(config.dim);
         this.xb2 = ArrayFloatTensor.allocate(config.dim);
         this.hb = ArrayFloatTensor.allocate(config.hiddenDim);
-        this.hb2 = ArrayFloatTensor.allocate(config.hiddenDim);
         this.q = ArrayFloatTensor.allocate(config.dim);
         this.k = ArrayFloatTensor.allocate(config.dim);
         this.v = ArrayFloatTensor.allocate(config.dim);
-        this.att = ArrayFloatTensor.allocate(config.numberOfHeads, config.contextLength);
+        this.att = ArrayFloatTensor.allocate(config.numberOfHeads, ATTENTION_TILE_SIZE);
+        this.attMax = new float[config.numberOfHeads];
+        this.attSum = new float[config.numberOfHeads];
+        this.maxAttentionSplits = Math.max(1, MAX_ATTENTION_SPLITS);
+        this.numberOfHeads = config.numberOfHeads;
+        this.dim = config.dim;
         this.logits = ArrayFloatTensor.allocate(config.vocabularySize);
         int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
-        this.keyCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
-        this.valueCache = Stream.generate(() -> ArrayFloatTensor.allocate(config.contextLength, kvDim)).limit(config.numberOfLayers).toArray(FloatTensor[]::new);
+        this.kvDim = kvDim;
+        this.kvBlockPool = kvBlockPool;
+        this.blockTable = new KVBlockPool.Block[(config.contextLength + KVBlockPool.BLOCK_SIZE - 1) / KVBlockPool.BLOCK_SIZE];
+        this.batchSize = batchSize;
+        this.batchX = allocateBatch(batchSize, config.dim);
+        this.batchXb = allocateBatch(batchSize, config.dim);
+        this.batchXb2 = allocateBatch(batchSize, config.dim);
+        this.batchHb = allocateBatch(batchSize, config.hiddenDim);
+        this.batchQ = allocateBatch(batchSize, config.dim);
+        this.batchK = allocateBatch(batchSize, kvDim);
+        this.batchV = allocateBatch(batchSize, kvDim);
+    }
+
+
+    /**
+     * Makes sure the split-kv buffers hold {@code splits} chunks. They are allocated on the first split rather than
+     * upfront, most states never attend to {@link #SPLIT_KV_THRESHOLD} positions.
+     */
+    void reserveSplits(int splits)
+    {
+        int allocated = splitOut.length;
+        if(allocated >= splits)
+        {
+            return;
+        }
+        splitAtt = Arrays.copyOf(splitAtt, splits);
+        splitOut = Arrays.copyOf(splitOut, splits);
+        splitMax = Arrays.copyOf(splitMax, splits);
+        splitSum = Arrays.copyOf(splitSum, splits);
+        for(int split = allocated; split < splits; split++)
+        {
+            splitAtt[split] = ArrayFloatTensor.allocate(numberOfHeads, ATTENTION_TILE_SIZE);
+            splitOut[split] = ArrayFloatTensor.allocate(dim);
+            splitMax[split] = new float[numberOfHeads];
+            splitSum[split] = new float[numberOfHeads];
+        }
+    }
+
+
+    /**
+     * Takes blocks from the pool until the key/value cache covers positions {@code [0, positions)}.
+     */
+    public void reserve(int positions)
+    {
+        while(blockCount * KVBlockPool.BLOCK_SIZE < positions)
+        {
+            blockTable[blockCount++] = kvBlockPool.acquire();
+        }
+    }
+
+
+    /**
+     * Starts the key/value cache with {@code blocks}, holding the first positions of the sequence, typically cached by
+     * another state. Adds a reference to each of them, the cache must be empty.
+     */
+    public void attach(List<KVBlockPool.Block> blocks)
+    {
+        if(blockCount != 0)
+        {
+            throw new IllegalStateException("The key/value cache already holds " + blockCount + " blocks");
+        }
+        if(blocks.size() > blockTable.length)
+        {
+            throw new IllegalArgumentException(blocks.size() + " blocks exceed the context length of " + blockTable.length + " blocks");
+        }
+        for(KVBlockPool.Block block : blocks)
+        {
+            kvBlockPool.retain(block);
+            blockTable[blockCount++] = block;
+        }
+    }
+
+
+    /**
+     * Block {@code index} of the key/value cache, holding positions {@code [index * block_size, (index + 1) * block_size)}.
+     */
+    public KVBlockPool.Block block(int index)
+    {
+        Objects.checkIndex(index, blockCount);
+        return blockTable[index];
+    }
+
+
+    /**
+     * Number of blocks of the key/value cache.
+     */
+    public int blockCount()
+    {
+        return blockCount;
+    }
+
+
+    /**
+     * Gives the blocks of the key/value cache back to the pool, the cached positions are lost.
+     */
+    public void release()
+    {
+        while(blockCount > 0)
+        {
+            kvBlockPool.release(blockTable[--blockCount]);
+            blockTable[blockCount] = null;
+        }
+    }
+
+
+    /**
+     * Keys of layer {@code layer} of the block holding {@code position}, the key is at {@link #cacheOffset(int)}.
+     */
+    public FloatTensor keyCache(int layer, int position)
+    {
+        return blockTable[position / KVBlockPool.BLOCK_SIZE].keys()[layer];
+    }
+
+
+    /**
+     * Values of layer {@code layer} of the block holding {@code position}, the value is at {@link #cacheOffset(int)}.
+     */
+    public FloatTensor valueCache(int layer, int position)
+    {
+        return blockTable[position / KVBlockPool.BLOCK_SIZE].values()[layer];
+    }
+
+
+    public int cacheOffset(int position)
+    {
+        return (position % KVBlockPool.BLOCK_SIZE) * kvDim;
+    }
+
+
+    private static FloatTensor[] allocateBatch(int batchSize, int dim)
+    {
+        return Stream.generate(() -> ArrayFloatTensor.allocate(dim)).limit(batchSize).toArray(FloatTensor[]::new);
     }
 }
@@ -0,0 +1,98 @@
+package io.github.orionlibs.javollama.core;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of idle {@link State}s, so that requests reuse the buffers of earlier ones instead of allocating their own.
+ * <p>
+ * The most recently returned state is handed out first. At most {@code capacity} states are kept: returning one to a
+ * full pool evicts the one idle the longest, and states idle for longer than the idle timeout are evicted on the next
+ * acquire or release. The key/value cache blocks of a state are given back to its {@link KVBlockPool} when it is
+ * returned, so idle states only hold their activation buffers.
+ */
+public final class StatePool
+{
+    private final Supplier<State> factory;
+    private final int capacity;
+    private final long idleTimeoutNanos;
+    // most recently returned first
+    private final Deque<IdleState> idleStates = new ArrayDeque<>();
+
+
+    /**
+     * @param factory            creates a state when none is idle
+     * @param capacity           maximum number of idle states kept, 0 disables pooling
+     * @param idleTimeoutMillis  idle states older than this are evicted, 0 keeps them until the pool is full
+     */
+    public StatePool(Supplier<State> factory, int capacity, long idleTimeoutMillis)
+    {
+        if(capacity < 0 || idleTimeoutMillis < 0)
+        {
+            throw new IllegalArgumentException("capacity and idle timeout must not be negative, were " + capacity + " and " + idleTimeoutMillis);
+        }
+        this.factory = factory;
+        this.capacity = capacity;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+    }
+
+
+    /**
+     * An idle state, or a new one if none is left. Its key/value cache is empty, the other buffers hold whatever the
+     * previous request left in them, every one of them is written before it is read.
+     */
+    public State acquire()
+    {
+        IdleState idleState;
+        synchronized(this)
+        {
+            evictExpired(System.nanoTime());
+            idleState = idleStates.pollFirst();
+        }
+        return idleState != null ? idleState.state() : factory.get();
+    }
+
+
+    /**
+     * Gives a state back once its request is done, it must not be used by the caller anymore.
+     */
+    public void release(State state)
+    {
+        state.release();
+        synchronized(this)
+        {
+            long now = System.nanoTime();
+            evictExpired(now);
+            if(capacity == 0)
+            {
+                return;
+            }
+            if(idleStates.size() == capacity)
+            {
+                idleStates.pollLast();
+            }
+            idleStates.addFirst(new IdleState(state, now));
+        }
+    }
+
+
+    public synchronized int idleStates()
+    {
+        return idleStates.size();
+    }
+
+
+    private void evictExpired(long now)
+    {
+        while(idleTimeoutNanos > 0 && !idleStates.isEmpty() && now - idleStates.peekLast().since() > idleTimeoutNanos)
+        {
+            idleStates.pollLast();
+        }
+    }
+
+
+    private record IdleState(State state, long since)
+    {
+    }
+}
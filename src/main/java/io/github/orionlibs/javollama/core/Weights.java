@@ -1,49 +1,49 @@
 package io.github.orionlibs.javollama.core;
 
 import io.github.orionlibs.javollama.core.tensor.FloatTensor;
-import java.nio.FloatBuffer;
 
 public final class Weights
 {
     // token embedding table
     public final FloatTensor token_embedding_table; // (vocab_size, dim)
     // weights for rmsnorms
-    public final FloatBuffer[] rms_att_weight; // (layer, dim) rmsnorm weights
+    public final FloatTensor[] rms_att_weight; // (layer, dim) rmsnorm weights
     // weights for matmuls
     public final FloatTensor[] wq; // (layer, n_heads * head_size)
     public final FloatTensor[] wk; // (layer, n_kv_heads, head_size)
     public final FloatTensor[] wv; // (layer, n_kv_heads * head_size)
+    // (optional) wq, wk and wv stacked row after row, null for layers whose projections could not be stacked
+    public final FloatTensor[] wqkv; // (layer, n_heads * head_size + 2 * n_kv_heads * head_size, dim)
     public final FloatTensor[] wo; // (layer, n_heads * head_size, dim)
-    public final FloatBuffer[] rms_ffn_weight; // (layer, dim)
+    public final FloatTensor[] rms_ffn_weight; // (layer, dim)
     // weights for ffn
     public final FloatTensor[] w1; // (layer, hidden_dim, dim)
     public final FloatTensor[] w2; // (layer, dim, hidden_dim)
     public final FloatTensor[] w3; // (layer, hidden_dim, dim)
     // public final rmsnorm
-    public final FloatBuffer rms_final_weight; // (dim,)
-    // freq_cis for RoPE relatively positional embeddings
-    public final FloatBuffer freq_cis_real; // (seq_len, head_size/2)
-    public final FloatBuffer freq_cis_imag; // (seq_len, head_size/2)
+    public final FloatTensor rms_final_weight; // (dim,)
+    // rotations for RoPE relatively positional embeddings, computed on demand
+    public final RotaryPositionEmbeddings rope;
     // (optional) classifier weights for the logits, on the last layer
     public final FloatTensor wcls; // (vocab_size, dim)
 
 
-    public Weights(FloatTensor token_embedding_table, FloatBuffer[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatBuffer[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatBuffer rms_final_weight, FloatBuffer freq_cis_real,
-                    FloatBuffer freq_cis_imag, FloatTensor wcls)
+    public Weights(FloatTensor token_embedding_table, FloatTensor[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wqkv, FloatTensor[] wo, FloatTensor[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatTensor rms_final_weight, RotaryPositionEmbeddings rope,
+                    FloatTensor wcls)
     {
         this.token_embedding_table = token_embedding_table;
         this.rms_att_weight = rms_att_weight;
         this.wq = wq;
         this.wk = wk;
         this.wv = wv;
+        this.wqkv = wqkv;
         this.wo = wo;
         this.rms_ffn_weight = rms_ffn_weight;
         this.w1 = w1;
         this.w2 = w2;
         this.w3 = w3;
         this.rms_final_weight = rms_final_weight;
-        this.freq_cis_real = freq_cis_real;
-        this.freq_cis_imag = freq_cis_imag;
+        this.rope = rope;
         this.wcls = wcls;
     }
 }
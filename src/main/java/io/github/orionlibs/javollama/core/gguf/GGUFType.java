@@ -1,5 +1,6 @@
 package io.github.orionlibs.javollama.core.gguf;
 
+import io.github.orionlibs.javollama.core.utils.BFloat16;
 import io.github.orionlibs.javollama.core.utils.Float16;
 
 public enum GGUFType
@@ -10,8 +11,8 @@ public enum GGUFType
     Q4_1(2 * Float16.BYTES + 16 * Byte.BYTES, 32),
     UNSUPPORTED_Q4_2(Integer.MAX_VALUE), // support has been removed
     UNSUPPORTED_Q4_3(Integer.MAX_VALUE), // support has been removed
-    Q5_0(Integer.MAX_VALUE),
-    Q5_1(Integer.MAX_VALUE),
+    Q5_0(Float16.BYTES + Integer.BYTES + 16 * Byte.BYTES, 32),
+    Q5_1(2 * Float16.BYTES + Integer.BYTES + 16 * Byte.BYTES, 32),
     Q8_0(Float16.BYTES + 32 * Byte.BYTES, 32),
     Q8_1(32 * Byte.BYTES + 2 * Float.BYTES, 32),
     // k-quantizations
@@ -21,9 +22,22 @@ public enum GGUFType
     Q5_K(2 * Float16.BYTES + ((GGUFType.QK_K / 16) / 8 * 6) + GGUFType.QK_K / 8 + GGUFType.QK_K / 2, GGUFType.QK_K),
     Q6_K(GGUFType.QK_K / 2 + GGUFType.QK_K / 4 + GGUFType.QK_K / 16 + Float16.BYTES, GGUFType.QK_K),
     Q8_K(Integer.MAX_VALUE),
+    // i-quantizations, not supported
+    IQ2_XXS(Integer.MAX_VALUE),
+    IQ2_XS(Integer.MAX_VALUE),
+    IQ3_XXS(Integer.MAX_VALUE),
+    IQ1_S(Integer.MAX_VALUE),
+    IQ4_NL(Integer.MAX_VALUE),
+    IQ3_S(Integer.MAX_VALUE),
+    IQ2_S(Integer.MAX_VALUE),
+    IQ4_XS(Integer.MAX_VALUE),
     I8(Byte.BYTES),
     I16(Short.BYTES),
-    I32(Integer.BYTES);
+    I32(Integer.BYTES),
+    I64(Long.BYTES),
+    F64(Double.BYTES),
+    IQ1_M(Integer.MAX_VALUE),
+    BF16(BFloat16.BYTES);
     private static final GGUFType[] VALUES = values();
     private final int typeSize;
     private final int blockSize;
@@ -41,6 +55,15 @@ public enum GGUFType
     }
 
 
+    /**
+     * The id of the type in GGUF files, the constants are declared in the order of their ids.
+     */
+    public int getId()
+    {
+        return ordinal();
+    }
+
+
     public static GGUFType fromId(int id)
     {
         return VALUES[id];
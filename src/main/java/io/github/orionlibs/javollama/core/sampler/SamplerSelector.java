@@ -5,6 +5,10 @@ import java.util.random.RandomGeneratorFactory;
 
 public class SamplerSelector
 {
+    /**
+     * A new sampler, with its own scratch and random generator, so select one per request. It turns the logits into
+     * probabilities in place before sampling them.
+     */
     public static Sampler selectSampler(int vocabularySize, float temperature, float topp)
     {
         Sampler sampler;
@@ -6,6 +6,7 @@ import java.util.random.RandomGenerator;
 
 public final class ToppSampler implements Sampler
 {
+    // scratch of a single call, a sampler serves one request at a time
     final int[] indices;
     final float topp;
     final RandomGenerator rng;
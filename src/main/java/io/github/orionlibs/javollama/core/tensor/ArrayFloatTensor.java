@@ -1,12 +1,28 @@
 package io.github.orionlibs.javollama.core.tensor;
 
 import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.AggregateFunction;
+import io.github.orionlibs.javollama.core.utils.MapFunction;
+import io.github.orionlibs.javollama.core.utils.MapWithIndexFunction;
 import java.util.Arrays;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
 import jdk.incubator.vector.VectorSpecies;
 
+/**
+ * Heap-backed float tensor, used for activations and scratch buffers.
+ * <p>
+ * The elementwise operations that run per head and per layer are specialized here: operands that are also
+ * {@link ArrayFloatTensor}s are processed with the Vector API on the backing arrays, anything else falls back to the
+ * generic implementations in {@link FloatTensor}. {@link #mapInPlace}, {@link #mapWithIndexInPlace} and {@link #reduce}
+ * stay scalar loops over the array: they apply arbitrary scalar functions, which the Vector API cannot run lane-wise,
+ * and the operations specialized here do not go through them.
+ */
 public final class ArrayFloatTensor extends FloatTensor
 {
+    // lane i takes lane i ^ 1, swapping the two elements of every pair
+    private static final VectorShuffle<Float> SWAP_PAIRS = VectorShuffle.fromOp(F_SPECIES, i -> i ^ 1);
     final float[] values;
 
 
@@ -68,4 +84,332 @@ public final class ArrayFloatTensor extends FloatTensor
         }
         return FloatVector.fromArray(species, values, index);
     }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof ArrayFloatTensor array)
+        {
+            if(!USE_VECTOR_API)
+            {
+                return scalarDot(this, thisOffset, that, thatOffset, size);
+            }
+            FloatVector val = FloatVector.zero(F_SPECIES);
+            int upperBound = F_SPECIES.loopBound(size);
+            for(int i = 0; i < upperBound; i += F_SPECIES.length())
+            {
+                FloatVector a = FloatVector.fromArray(F_SPECIES, values, thisOffset + i);
+                FloatVector b = FloatVector.fromArray(F_SPECIES, array.values, thatOffset + i);
+                val = a.fma(b, val);
+            }
+            float result = val.reduceLanes(VectorOperators.ADD);
+            for(int i = upperBound; i < size; i++)
+            {
+                result += values[thisOffset + i] * array.values[thatOffset + i];
+            }
+            return result;
+        }
+        // the other tensor knows how to read its own layout, e.g. a quantized key cache
+        return that.dot(thatOffset, this, thisOffset, size);
+    }
+
+
+    @Override
+    public float reduce(int thisOffset, int size, float seed, AggregateFunction reduce)
+    {
+        float result = seed;
+        int endIndex = thisOffset + size;
+        for(int i = thisOffset; i < endIndex; ++i)
+        {
+            result = reduce.apply(result, values[i]);
+        }
+        return result;
+    }
+
+
+    @Override
+    float sum(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.sum(thisOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            val = val.add(FloatVector.fromArray(F_SPECIES, values, thisOffset + i));
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        for(int i = upperBound; i < size; i++)
+        {
+            result += values[thisOffset + i];
+        }
+        return result;
+    }
+
+
+    @Override
+    public float max(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.max(thisOffset, size);
+        }
+        FloatVector val = FloatVector.broadcast(F_SPECIES, Float.NEGATIVE_INFINITY);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            val = val.max(FloatVector.fromArray(F_SPECIES, values, thisOffset + i));
+        }
+        float result = val.reduceLanes(VectorOperators.MAX);
+        for(int i = upperBound; i < size; i++)
+        {
+            result = Math.max(result, values[thisOffset + i]);
+        }
+        return result;
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof ArrayFloatTensor array)
+        {
+            System.arraycopy(values, thisOffset, array.values, thatOffset, size);
+        }
+        else
+        {
+            that.copyFrom(values, thisOffset, thatOffset, size);
+        }
+    }
+
+
+    @Override
+    FloatTensor mapInPlace(int thisOffset, int size, MapFunction mapFunction)
+    {
+        int endIndex = thisOffset + size;
+        for(int i = thisOffset; i < endIndex; ++i)
+        {
+            values[i] = mapFunction.apply(values[i]);
+        }
+        return this;
+    }
+
+
+    @Override
+    public FloatTensor mapWithIndexInPlace(int thisOffset, int size, MapWithIndexFunction mapWithIndexFunction)
+    {
+        int endIndex = thisOffset + size;
+        for(int i = thisOffset; i < endIndex; ++i)
+        {
+            values[i] = mapWithIndexFunction.apply(values[i], i);
+        }
+        return this;
+    }
+
+
+    @Override
+    FloatTensor addInPlace(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArrayFloatTensor array))
+        {
+            return super.addInPlace(thisOffset, that, thatOffset, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector a = FloatVector.fromArray(F_SPECIES, values, thisOffset + i);
+            a.add(FloatVector.fromArray(F_SPECIES, array.values, thatOffset + i)).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] += array.values[thatOffset + i];
+        }
+        return this;
+    }
+
+
+    @Override
+    FloatTensor multiplyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArrayFloatTensor array))
+        {
+            return super.multiplyInPlace(thisOffset, that, thatOffset, size);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector a = FloatVector.fromArray(F_SPECIES, values, thisOffset + i);
+            a.mul(FloatVector.fromArray(F_SPECIES, array.values, thatOffset + i)).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] *= array.values[thatOffset + i];
+        }
+        return this;
+    }
+
+
+    @Override
+    public FloatTensor divideInPlace(int thisOffset, int size, float value)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.divideInPlace(thisOffset, size, value);
+        }
+        FloatVector divisor = FloatVector.broadcast(F_SPECIES, value);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + i).div(divisor).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] /= value;
+        }
+        return this;
+    }
+
+
+    @Override
+    public FloatTensor scaleInPlace(int thisOffset, int size, float value)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.scaleInPlace(thisOffset, size, value);
+        }
+        FloatVector factor = FloatVector.broadcast(F_SPECIES, value);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector.fromArray(F_SPECIES, values, thisOffset + i).mul(factor).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] *= value;
+        }
+        return this;
+    }
+
+
+    @Override
+    public float expInPlace(int thisOffset, int size, float shift)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.expInPlace(thisOffset, size, shift);
+        }
+        // exp and sum in one pass
+        FloatVector shiftVector = FloatVector.broadcast(F_SPECIES, shift);
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector e = FloatVector.fromArray(F_SPECIES, values, thisOffset + i).sub(shiftVector).lanewise(VectorOperators.EXP);
+            e.intoArray(values, thisOffset + i);
+            val = val.add(e);
+        }
+        float sum = val.reduceLanes(VectorOperators.ADD);
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] = (float)Math.exp(values[thisOffset + i] - shift);
+            sum += values[thisOffset + i];
+        }
+        return sum;
+    }
+
+
+    @Override
+    public FloatTensor softmaxInPlace(int thisOffset, int size)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.softmaxInPlace(thisOffset, size);
+        }
+        // find max value (for numerical stability)
+        float maxVal = max(thisOffset, size);
+        float sum = expInPlace(thisOffset, size, maxVal);
+        // normalize
+        return divideInPlace(thisOffset, size, sum);
+    }
+
+
+    @Override
+    public FloatTensor saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a)
+    {
+        if(!USE_VECTOR_API || !that.hasFloatVectors())
+        {
+            return super.saxpyInPlace(thisOffset, that, thatOffset, size, a);
+        }
+        FloatVector alpha = FloatVector.broadcast(F_SPECIES, a);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector x = that.getFloatVector(F_SPECIES, thatOffset + i);
+            x.fma(alpha, FloatVector.fromArray(F_SPECIES, values, thisOffset + i)).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[thisOffset + i] += a * that.getFloat(thatOffset + i);
+        }
+        return this;
+    }
+
+
+    @Override
+    public FloatTensor ropeInPlace(int thisOffset, int size, float[] cos, float[] sin, int tableOffset)
+    {
+        if(!USE_VECTOR_API)
+        {
+            return super.ropeInPlace(thisOffset, size, cos, sin, tableOffset);
+        }
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector v = FloatVector.fromArray(F_SPECIES, values, thisOffset + i);
+            FloatVector rotated = v.mul(FloatVector.fromArray(F_SPECIES, cos, tableOffset + i));
+            // the other element of each pair, times the signed sine
+            v.rearrange(SWAP_PAIRS).fma(FloatVector.fromArray(F_SPECIES, sin, tableOffset + i), rotated).intoArray(values, thisOffset + i);
+        }
+        for(int i = upperBound; i < size; i += 2)
+        {
+            float v0 = values[thisOffset + i];
+            float v1 = values[thisOffset + i + 1];
+            values[thisOffset + i] = v0 * cos[tableOffset + i] + v1 * sin[tableOffset + i];
+            values[thisOffset + i + 1] = v1 * cos[tableOffset + i + 1] + v0 * sin[tableOffset + i + 1];
+        }
+        return this;
+    }
+
+
+    @Override
+    public FloatTensor normalizeInPlace(FloatTensor x, FloatTensor weight, int size, float scale)
+    {
+        // weights are read in place from whatever holds them, e.g. the mapped F32 norm tensors of the model file
+        if(!USE_VECTOR_API || !(x instanceof ArrayFloatTensor array) || !weight.hasFloatVectors())
+        {
+            return super.normalizeInPlace(x, weight, size, scale);
+        }
+        FloatVector factor = FloatVector.broadcast(F_SPECIES, scale);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector xs = FloatVector.fromArray(F_SPECIES, array.values, i).mul(factor);
+            weight.getFloatVector(F_SPECIES, i).mul(xs).intoArray(values, i);
+        }
+        for(int i = upperBound; i < size; i++)
+        {
+            values[i] = weight.getFloat(i) * (scale * array.values[i]);
+        }
+        return this;
+    }
 }
@@ -0,0 +1,119 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.BFloat16;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Brain floating point {@link GGUFType#BF16} {@link FloatTensor} backed by a {@link MemorySegment} e.g. a memory mapped file.
+ * <p>
+ * A bfloat16 is the upper half of a float, widening is a 16 bits shift.
+ */
+public final class BF16FloatTensor extends FloatTensor
+{
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public BF16FloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        return Float.intBitsToFloat(memorySegment.get(JAVA_SHORT_LE, (long)index * BFloat16.BYTES) << 16);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        return bfloat16ToFloat(species, memorySegment, (long)index * BFloat16.BYTES);
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.BF16;
+    }
+
+
+    static FloatVector bfloat16ToFloat(VectorSpecies<Float> species, MemorySegment memorySegment, long byteOffset)
+    {
+        VectorSpecies<Short> shortSpecies = species == F_SPECIES ? F16FloatTensor.S_SPECIES : VectorSpecies.of(short.class, VectorShape.forBitSize(species.vectorBitSize() / 2));
+        return ShortVector.fromMemorySegment(shortSpecies, memorySegment, byteOffset, ByteOrder.LITTLE_ENDIAN)
+                        .castShape(species.withLanes(int.class), 0)
+                        .lanewise(VectorOperators.LSHL, 16)
+                        .reinterpretAsFloats();
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(BF16FloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int j = 0; j < upperBound; j += F_SPECIES.length())
+        {
+            var w = bfloat16ToFloat(F_SPECIES, thiz.memorySegment, (long)(thisOffset + j) * BFloat16.BYTES);
+            val = that.getFloatVector(F_SPECIES, thatOffset + j).fma(w, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(upperBound < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+        }
+        return result;
+    }
+}
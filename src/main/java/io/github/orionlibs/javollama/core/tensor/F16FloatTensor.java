@@ -0,0 +1,137 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Half-precision {@link GGUFType#F16} {@link FloatTensor} backed by a {@link MemorySegment} e.g. a memory mapped file.
+ */
+public final class F16FloatTensor extends FloatTensor
+{
+    // half as many bits as F_SPECIES, so one load of halves widens into exactly one float vector
+    static final VectorSpecies<Short> S_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(F_SPECIES.vectorBitSize() / 2));
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public F16FloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        return Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, (long)index * Float16.BYTES));
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        return float16ToFloat(species, memorySegment, (long)index * Float16.BYTES);
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F16;
+    }
+
+
+    @Override
+    void copyFrom(float[] source, int sourceOffset, int thisOffset, int size)
+    {
+        for(int i = 0; i < size; i++)
+        {
+            memorySegment.set(JAVA_SHORT_LE, (long)(thisOffset + i) * Float16.BYTES, Float.floatToFloat16(source[sourceOffset + i]));
+        }
+    }
+
+
+    /**
+     * Vectorized {@link Float#float16ToFloat(short)} of {@code species.length()} consecutive halves.
+     */
+    static FloatVector float16ToFloat(VectorSpecies<Float> species, MemorySegment memorySegment, long byteOffset)
+    {
+        VectorSpecies<Short> shortSpecies = species == F_SPECIES ? S_SPECIES : VectorSpecies.of(short.class, VectorShape.forBitSize(species.vectorBitSize() / 2));
+        var bits = ((IntVector)ShortVector.fromMemorySegment(shortSpecies, memorySegment, byteOffset, ByteOrder.LITTLE_ENDIAN).castShape(species.withLanes(int.class), 0)).and(0xFFFF);
+        var sign = bits.and(0x8000).lanewise(VectorOperators.LSHL, 16);
+        var exponentAndMantissa = bits.and(0x7FFF).lanewise(VectorOperators.LSHL, 13);
+        // rebias the exponent from 15 to 127, subnormal halves become normal floats
+        var magnitude = exponentAndMantissa.reinterpretAsFloats().mul(0x1p112f).reinterpretAsInts();
+        // infinities and NaNs keep an all ones exponent
+        var infinityOrNaN = bits.and(0x7C00).compare(VectorOperators.EQ, 0x7C00);
+        return magnitude.blend(exponentAndMantissa.or(0x7F800000), infinityOrNaN).or(sign).reinterpretAsFloats();
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(F16FloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int j = 0; j < upperBound; j += F_SPECIES.length())
+        {
+            var w = float16ToFloat(F_SPECIES, thiz.memorySegment, (long)(thisOffset + j) * Float16.BYTES);
+            val = that.getFloatVector(F_SPECIES, thatOffset + j).fma(w, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(upperBound < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+        }
+        return result;
+    }
+}
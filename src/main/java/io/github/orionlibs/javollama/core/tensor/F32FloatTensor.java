@@ -0,0 +1,104 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Unquantized {@link GGUFType#F32} {@link FloatTensor} backed by a {@link MemorySegment} e.g. a memory mapped file.
+ */
+public final class F32FloatTensor extends FloatTensor
+{
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public F32FloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        return memorySegment.get(JAVA_FLOAT_LE, (long)index * Float.BYTES);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        return FloatVector.fromMemorySegment(species, memorySegment, (long)index * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F32;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(F32FloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int j = 0; j < upperBound; j += F_SPECIES.length())
+        {
+            var w = FloatVector.fromMemorySegment(F_SPECIES, thiz.memorySegment, (long)(thisOffset + j) * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            val = that.getFloatVector(F_SPECIES, thatOffset + j).fma(w, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(upperBound < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + upperBound, that, thatOffset + upperBound, size - upperBound);
+        }
+        return result;
+    }
+}
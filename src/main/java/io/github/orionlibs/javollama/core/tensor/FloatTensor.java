@@ -23,8 +23,27 @@ public abstract class FloatTensor
     static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
     static final boolean USE_VECTOR_API = Boolean.parseBoolean(System.getProperty("llama.VectorAPI", "true"));
     // Preferred vector size for the fast multiplication routines.
-    // (Apple Silicon) NEON only supports up-to 128bit vectors.
-    static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED.vectorBitSize() == 128 ? FloatVector.SPECIES_128 : FloatVector.SPECIES_256;
+    // (Apple Silicon) NEON only supports up-to 128bit vectors, AVX-512 hosts get 512bit vectors.
+    // -Dllama.VectorBitSize=128|256|512 overrides it, e.g. to stay at 256bit where 512bit instructions lower the clock.
+    static final VectorSpecies<Float> F_SPECIES = selectSpecies(Integer.parseInt(System.getProperty("llama.VectorBitSize",
+                    String.valueOf(Math.max(128, Math.min(512, FloatVector.SPECIES_PREFERRED.vectorBitSize()))))));
+    // Quantize matmul inputs to 8 bits once per matmul and dot them against Q4_0/Q8_0 weights in the integer domain.
+    static final boolean USE_Q8_ACTIVATIONS = Boolean.parseBoolean(System.getProperty("llama.Q8Activations", "false"));
+
+
+    /**
+     * The kernels have variants for 128, 256 and 512 bits only, any other width fails fast here rather than in a kernel.
+     */
+    private static VectorSpecies<Float> selectSpecies(int vectorBitSize)
+    {
+        return switch(vectorBitSize)
+        {
+            case 128 -> FloatVector.SPECIES_128;
+            case 256 -> FloatVector.SPECIES_256;
+            case 512 -> FloatVector.SPECIES_512;
+            default -> throw new IllegalArgumentException("Unsupported vector bit size " + vectorBitSize + ", llama.VectorBitSize must be 128, 256 or 512");
+        };
+    }
 
 
     public abstract int size();
@@ -39,6 +58,15 @@ public abstract class FloatTensor
     abstract FloatVector getFloatVector(VectorSpecies<Float> species, int offset);
 
 
+    /**
+     * Whether {@link #getFloatVector} reads this tensor when the Vector API is on, rather than throwing.
+     */
+    boolean hasFloatVectors()
+    {
+        return false;
+    }
+
+
     abstract GGUFType type();
 
 
@@ -66,9 +94,237 @@ public abstract class FloatTensor
     }
 
 
+    /**
+     * Converts the input vector of a matmul against this tensor into the representation {@link #dot} is fastest with.
+     * Called once per matmul, before any row is dotted; the default is the input itself.
+     */
+    FloatTensor matmulInput(FloatTensor that, int size)
+    {
+        return that;
+    }
+
+
+    /**
+     * Number of consecutive rows {@link #matmulRows} is best called with in a matmul of {@code dim0} rows against
+     * {@code that}, a divisor of {@code dim0}. 1 unless the layout of this tensor has a kernel producing several rows
+     * in one pass over them.
+     */
+    int matmulGroupSize(FloatTensor that, int dim0, int dim1)
+    {
+        return 1;
+    }
+
+
+    /**
+     * {@code out[outOffset + r] = this[row + r] . input} for the {@code rows} rows from {@code row}, where
+     * {@code input} comes from {@link #matmulInput}. Any number of rows is accepted, a multiple of the
+     * {@link #matmulGroupSize} is the fast one.
+     */
+    void matmulRows(int row, int rows, FloatTensor input, FloatTensor out, int outOffset, int dim1)
+    {
+        for(int r = 0; r < rows; r++)
+        {
+            out.setFloat(outOffset + r, dot((row + r) * dim1, input, 0, dim1));
+        }
+    }
+
+
     public void matmul(FloatTensor that, FloatTensor out, int dim0, int dim1)
     {
-        Parallel.parallelFor(0, dim0, i -> out.setFloat(i, dot(i * dim1, that, 0, dim1)));
+        FloatTensor input = matmulInput(that, dim1);
+        int group = matmulGroupSize(that, dim0, dim1);
+        Parallel.parallelFor(0, dim0 / group, g -> matmulRows(g * group, group, input, out, g * group, dim1));
+    }
+
+
+    /**
+     * Multiplies this matrix by {@code batchSize} vectors at once.
+     * <p>
+     * Each row is dotted against every vector of the batch while it is still hot in cache, so the weights
+     * are streamed from memory once per batch instead of once per vector.
+     */
+    public void matmul(int batchSize, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1)
+    {
+        FloatTensor[] inputs = new FloatTensor[batchSize];
+        for(int b = 0; b < batchSize; b++)
+        {
+            inputs[b] = matmulInput(that[b], dim1);
+        }
+        int group = matmulGroupSize(that[0], dim0, dim1);
+        Parallel.parallelFor(0, dim0 / group, g -> {
+            for(int b = 0; b < batchSize; b++)
+            {
+                matmulRows(g * group, group, inputs[b], out[b], g * group, dim1);
+            }
+        });
+    }
+
+
+    /**
+     * Fused matmul of the stacked rows of this tensor: rows {@code [0, dim0[0])} go to {@code out[0]}, the next
+     * {@code dim0[1]} rows to {@code out[1]} and so on. All outputs share one task split over the input {@code that}.
+     */
+    public void matmul(FloatTensor that, FloatTensor[] out, int[] dim0, int dim1)
+    {
+        FloatTensor input = matmulInput(that, dim1);
+        int[] rowStart = rowStarts(dim0);
+        int group = commonGroupSize(matmulGroupSize(that, rowStart[out.length], dim1), dim0);
+        Parallel.parallelFor(0, rowStart[out.length] / group, g -> {
+            int row = g * group;
+            int o = outputOf(rowStart, row);
+            matmulRows(row, group, input, out[o], row - rowStart[o], dim1);
+        });
+    }
+
+
+    /**
+     * Fused matmul of several weight tensors with the same input, {@code out[w] = weights[w] * that}, in one task split.
+     * Used where the weights could not be stacked into a single tensor at load time, e.g. when their types differ.
+     */
+    public static void matmul(FloatTensor that, FloatTensor[] weights, FloatTensor[] out, int[] dim0, int dim1)
+    {
+        FloatTensor[] inputs = new FloatTensor[weights.length];
+        for(int w = 0; w < weights.length; w++)
+        {
+            inputs[w] = weights[w].matmulInput(that, dim1);
+        }
+        // one task per group of rows, the groups of each weight tensor are the ones of its own layout
+        int[] group = new int[weights.length];
+        int[] taskDim0 = new int[weights.length];
+        for(int w = 0; w < weights.length; w++)
+        {
+            group[w] = weights[w].matmulGroupSize(that, dim0[w], dim1);
+            taskDim0[w] = dim0[w] / group[w];
+        }
+        int[] taskStart = rowStarts(taskDim0);
+        Parallel.parallelFor(0, taskStart[weights.length], task -> {
+            int w = outputOf(taskStart, task);
+            int i = (task - taskStart[w]) * group[w];
+            weights[w].matmulRows(i, group[w], inputs[w], out[w], i, dim1);
+        });
+    }
+
+
+    /**
+     * Fused SwiGLU feed-forward projection, {@code out[i] = silu(gate[i] . that) * (up[i] . that)} for the
+     * {@code dim0} rows of {@code gate} and {@code up}, computed in the task that produces both dot products.
+     */
+    public static void swiglu(FloatTensor gate, FloatTensor up, FloatTensor that, FloatTensor out, int dim0, int dim1)
+    {
+        FloatTensor gateInput = gate.matmulInput(that, dim1);
+        FloatTensor upInput = up.matmulInput(that, dim1);
+        int group = swigluGroupSize(gate, up, that, dim0, dim1);
+        if(group == 1)
+        {
+            Parallel.parallelFor(0, dim0, i -> out.setFloat(i, silu(gate.dot(i * dim1, gateInput, 0, dim1)) * up.dot(i * dim1, upInput, 0, dim1)));
+            return;
+        }
+        Parallel.parallelFor(0, dim0 / group, g -> swigluRows(gate, up, g * group, group, gateInput, upInput, out, ArrayFloatTensor.allocate(group), dim1));
+    }
+
+
+    /**
+     * Batched {@link #swiglu(FloatTensor, FloatTensor, FloatTensor, FloatTensor, int, int)}, each task handles one row
+     * of {@code gate} and {@code up} for every input of the batch.
+     */
+    public static void swiglu(FloatTensor gate, FloatTensor up, int batchSize, FloatTensor[] that, FloatTensor[] out, int dim0, int dim1)
+    {
+        FloatTensor[] gateInputs = new FloatTensor[batchSize];
+        FloatTensor[] upInputs = new FloatTensor[batchSize];
+        for(int b = 0; b < batchSize; b++)
+        {
+            gateInputs[b] = gate.matmulInput(that[b], dim1);
+            upInputs[b] = up.matmulInput(that[b], dim1);
+        }
+        int group = swigluGroupSize(gate, up, that[0], dim0, dim1);
+        if(group == 1)
+        {
+            Parallel.parallelFor(0, dim0, i -> {
+                for(int b = 0; b < batchSize; b++)
+                {
+                    out[b].setFloat(i, silu(gate.dot(i * dim1, gateInputs[b], 0, dim1)) * up.dot(i * dim1, upInputs[b], 0, dim1));
+                }
+            });
+            return;
+        }
+        Parallel.parallelFor(0, dim0 / group, g -> {
+            FloatTensor upRows = ArrayFloatTensor.allocate(group);
+            for(int b = 0; b < batchSize; b++)
+            {
+                swigluRows(gate, up, g * group, group, gateInputs[b], upInputs[b], out[b], upRows, dim1);
+            }
+        });
+    }
+
+
+    /**
+     * Rows computed together by the SwiGLU projection, the larger group size of {@code gate} and {@code up} when it
+     * divides {@code dim0}, the other one computes the same rows one by one if it has no such kernel.
+     */
+    private static int swigluGroupSize(FloatTensor gate, FloatTensor up, FloatTensor that, int dim0, int dim1)
+    {
+        int group = Math.max(gate.matmulGroupSize(that, dim0, dim1), up.matmulGroupSize(that, dim0, dim1));
+        return dim0 % group == 0 ? group : 1;
+    }
+
+
+    /**
+     * SwiGLU of the {@code rows} rows from {@code row}, the gate is computed into {@code out} and then gated by the up
+     * projection, computed into {@code upRows}.
+     */
+    private static void swigluRows(FloatTensor gate, FloatTensor up, int row, int rows, FloatTensor gateInput, FloatTensor upInput, FloatTensor out, FloatTensor upRows, int dim1)
+    {
+        gate.matmulRows(row, rows, gateInput, out, row, dim1);
+        up.matmulRows(row, rows, upInput, upRows, 0, dim1);
+        for(int r = 0; r < rows; r++)
+        {
+            out.setFloat(row + r, silu(out.getFloat(row + r)) * upRows.getFloat(r));
+        }
+    }
+
+
+    /**
+     * {@code group} if it divides every one of {@code dim0}, so that no group spans two outputs, otherwise 1.
+     */
+    private static int commonGroupSize(int group, int[] dim0)
+    {
+        for(int rows : dim0)
+        {
+            if(rows % group != 0)
+            {
+                return 1;
+            }
+        }
+        return group;
+    }
+
+
+    // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+    private static float silu(float value)
+    {
+        return value / (float)(1.0 + Math.exp(-value));
+    }
+
+
+    private static int[] rowStarts(int[] dim0)
+    {
+        int[] rowStart = new int[dim0.length + 1];
+        for(int o = 0; o < dim0.length; o++)
+        {
+            rowStart[o + 1] = rowStart[o] + dim0[o];
+        }
+        return rowStart;
+    }
+
+
+    private static int outputOf(int[] rowStart, int row)
+    {
+        int o = 0;
+        while(row >= rowStart[o + 1])
+        {
+            o++;
+        }
+        return o;
     }
 
 
@@ -89,7 +345,7 @@ public abstract class FloatTensor
     }
 
 
-    float max(int thisOffset, int size)
+    public float max(int thisOffset, int size)
     {
         return reduce(thisOffset, size, Float.NEGATIVE_INFINITY, Float::max);
     }
@@ -101,6 +357,19 @@ public abstract class FloatTensor
     }
 
 
+    /**
+     * this[thisOffset ... thisOffset + size) = source[sourceOffset ... sourceOffset + size), how heap activations are
+     * stored into this tensor, e.g. a key/value cache kept in a quantized format.
+     */
+    void copyFrom(float[] source, int sourceOffset, int thisOffset, int size)
+    {
+        for(int i = 0; i < size; i++)
+        {
+            setFloat(thisOffset + i, source[sourceOffset + i]);
+        }
+    }
+
+
     int argmax(int thisOffset, int size)
     {
         assert size > 0;
@@ -190,6 +459,22 @@ public abstract class FloatTensor
     }
 
 
+    public FloatTensor scaleInPlace(int thisOffset, int size, float value)
+    {
+        return mapInPlace(thisOffset, size, f -> f * value);
+    }
+
+
+    /**
+     * this[thisOffset ... thisOffset + size) = exp(this[thisOffset ... thisOffset + size) - shift), returns the sum of the results.
+     */
+    public float expInPlace(int thisOffset, int size, float shift)
+    {
+        mapInPlace(thisOffset, size, f -> (float)Math.exp(f - shift));
+        return sum(thisOffset, size);
+    }
+
+
     public FloatTensor softmaxInPlace(int thisOffset, int size)
     {
         // find max value (for numerical stability)
@@ -202,6 +487,15 @@ public abstract class FloatTensor
     }
 
 
+    /**
+     * this[0 ... size) = weight[0 ... size) * (scale * x[0 ... size)), the normalize and scale step of RMSNorm.
+     */
+    public FloatTensor normalizeInPlace(FloatTensor x, FloatTensor weight, int size, float scale)
+    {
+        return mapWithIndexInPlace(0, size, (value, index) -> weight.getFloat(index) * (scale * x.getFloat(index)));
+    }
+
+
     public FloatTensor saxpyInPlace(int thisOffset, FloatTensor that, int thatOffset, int size, float a)
     {
         // this[thatOffset ... thatOffset + size) = a * that[thatOffset ... thatOffset + size) + this[thisOffset ... thisOffset + size)
@@ -211,4 +505,22 @@ public abstract class FloatTensor
         }
         return this;
     }
+
+
+    /**
+     * Rotates the pairs of this[thisOffset ... thisOffset + size) in place, the RoPE step:
+     * this[i] = this[i] * cos[tableOffset + i] + this[i ^ 1] * sin[tableOffset + i], where both elements of a pair get the
+     * cosine of its angle, and the first one the negated sine.
+     */
+    public FloatTensor ropeInPlace(int thisOffset, int size, float[] cos, float[] sin, int tableOffset)
+    {
+        for(int i = 0; i < size; i += 2)
+        {
+            float v0 = getFloat(thisOffset + i);
+            float v1 = getFloat(thisOffset + i + 1);
+            setFloat(thisOffset + i, v0 * cos[tableOffset + i] + v1 * sin[tableOffset + i]);
+            setFloat(thisOffset + i + 1, v1 * cos[tableOffset + i + 1] + v0 * sin[tableOffset + i + 1]);
+        }
+        return this;
+    }
 }
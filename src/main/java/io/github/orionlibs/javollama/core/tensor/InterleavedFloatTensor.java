@@ -0,0 +1,260 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.utils.Parallel;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Weight matrix repacked at load time from the GGUF block layout into an off-heap layout built for the matmul kernels.
+ * <p>
+ * The quants of each block are copied without their scale, so every block starts on a multiple of its quant size, and
+ * the scales are widened once into a separate float array. Rows are interleaved in groups of {@link #ROWS}: the
+ * groups are stored one after the other, and within a group the blocks of its rows alternate, block 0 of rows 0..3,
+ * then block 1 of rows 0..3 and so on. One kernel call streams a group front to back and produces {@link #ROWS}
+ * outputs.
+ */
+public abstract class InterleavedFloatTensor extends FloatTensor
+{
+    public static final int ROWS = 4;
+    static final int BLOCK_SIZE = 32;
+    final int rows;
+    final int columns;
+    final int blocksPerRow;
+    // bytes of quants per block
+    final int blockBytes;
+    final MemorySegment quants;
+    final float[] scales;
+    // index of the first scale of this tensor, views of a subset of the rows share the scales of the whole tensor
+    final int scaleBase;
+
+
+    InterleavedFloatTensor(int rows, int columns, int blockBytes, MemorySegment quants, float[] scales, int scaleBase)
+    {
+        this.rows = rows;
+        this.columns = columns;
+        this.blocksPerRow = columns / BLOCK_SIZE;
+        this.blockBytes = blockBytes;
+        this.quants = quants;
+        this.scales = scales;
+        this.scaleBase = scaleBase;
+    }
+
+
+    /**
+     * Repacks a 2-dimensional Q4_0 or Q8_0 tensor. Returns null for other formats and for shapes that do not split into
+     * whole groups of rows, these stay in the mapped GGUF layout.
+     */
+    public static InterleavedFloatTensor repack(GGUFTensorEntry entry)
+    {
+        int[] shape = entry.shape();
+        if(shape.length != 2 || shape[0] % BLOCK_SIZE != 0 || shape[1] % ROWS != 0)
+        {
+            return null;
+        }
+        int blockBytes = switch(entry.ggmlType())
+        {
+            case Q4_0 -> BLOCK_SIZE / 2;
+            case Q8_0 -> BLOCK_SIZE;
+            default -> 0;
+        };
+        if(blockBytes == 0)
+        {
+            return null;
+        }
+        int columns = shape[0];
+        int rows = shape[1];
+        int blocksPerRow = columns / BLOCK_SIZE;
+        int typeSize = entry.ggmlType().getTypeSize();
+        MemorySegment source = entry.memorySegment();
+        MemorySegment quants = Arena.ofAuto().allocate((long)rows * blocksPerRow * blockBytes, 64);
+        float[] scales = new float[rows * blocksPerRow];
+        Parallel.parallelFor(0, rows, row -> {
+            for(int block = 0; block < blocksPerRow; block++)
+            {
+                long sourceOffset = ((long)row * blocksPerRow + block) * typeSize;
+                int scaleIndex = scaleIndex(row, block, blocksPerRow);
+                scales[scaleIndex] = Float.float16ToFloat(source.get(JAVA_SHORT_LE, sourceOffset));
+                MemorySegment.copy(source, sourceOffset + Short.BYTES, quants, (long)scaleIndex * blockBytes, blockBytes);
+            }
+        });
+        return switch(entry.ggmlType())
+        {
+            case Q4_0 -> new Q4_0InterleavedFloatTensor(rows, columns, quants, scales, 0);
+            default -> new Q8_0InterleavedFloatTensor(rows, columns, quants, scales, 0);
+        };
+    }
+
+
+    /**
+     * The rows {@code [rowStart, rowStart + rowCount)}, sharing the memory of this tensor. Both must be multiples of {@link #ROWS}.
+     */
+    public InterleavedFloatTensor rows(int rowStart, int rowCount)
+    {
+        if(rowStart % ROWS != 0 || rowCount % ROWS != 0 || rowStart + rowCount > rows)
+        {
+            throw new IllegalArgumentException("rows [" + rowStart + ", " + (rowStart + rowCount) + ") of " + rows);
+        }
+        int scaleStart = rowStart * blocksPerRow;
+        MemorySegment slice = quants.asSlice((long)scaleStart * blockBytes, (long)rowCount * blocksPerRow * blockBytes);
+        return view(rowCount, slice, scaleBase + scaleStart);
+    }
+
+
+    abstract InterleavedFloatTensor view(int rows, MemorySegment quants, int scaleBase);
+
+
+    /**
+     * Quant {@code index} of the block starting at {@code blockOffset}, not yet scaled.
+     */
+    abstract int quant(long blockOffset, int index);
+
+
+    /**
+     * The 16 quants, not yet scaled, of the half of the block starting at {@code blockOffset} that holds quant {@code index}.
+     */
+    abstract ByteVector halfBlock(long blockOffset, int index);
+
+
+    /**
+     * Unscaled dot product of the block starting at {@code blockOffset} with {@code x[xOffset ... xOffset + 32)}.
+     */
+    abstract FloatVector blockSum(long blockOffset, float[] x, int xOffset);
+
+
+    // position of the block in the interleaved layout, in blocks, which is also the index of its scale
+    static int scaleIndex(int row, int block, int blocksPerRow)
+    {
+        return ((row / ROWS) * blocksPerRow + block) * ROWS + row % ROWS;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return rows * columns;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        int row = index / columns;
+        int column = index % columns;
+        int scaleIndex = scaleIndex(row, column / BLOCK_SIZE, blocksPerRow);
+        return quant((long)scaleIndex * blockBytes, column % BLOCK_SIZE) * scales[scaleBase + scaleIndex];
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    /**
+     * {@code species.length()} consecutive values of a row, read from the layout when they start at a multiple of
+     * {@code species.length()}, so that they lie in one half of a block.
+     */
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        int column = index % columns;
+        if(index % species.length() != 0 || species.length() > BLOCK_SIZE / 2 || column + species.length() > columns)
+        {
+            float[] values = new float[species.length()];
+            for(int i = 0; i < values.length; i++)
+            {
+                values[i] = getFloat(index + i);
+            }
+            return FloatVector.fromArray(species, values, 0);
+        }
+        int scaleIndex = scaleIndex(index / columns, column / BLOCK_SIZE, blocksPerRow);
+        int withinBlockIndex = column % BLOCK_SIZE;
+        var bytes = halfBlock((long)scaleIndex * blockBytes, withinBlockIndex);
+        var values = (FloatVector)bytes.castShape(species, withinBlockIndex % (BLOCK_SIZE / 2) / species.length());
+        return values.mul(scales[scaleBase + scaleIndex]);
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArrayFloatTensor array) || thisOffset % BLOCK_SIZE != 0 || size % BLOCK_SIZE != 0)
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        for(int j = 0; j < size; j += BLOCK_SIZE)
+        {
+            int index = thisOffset + j;
+            int scaleIndex = scaleIndex(index / columns, index % columns / BLOCK_SIZE, blocksPerRow);
+            var scale = FloatVector.broadcast(F_SPECIES, scales[scaleBase + scaleIndex]);
+            val = blockSum((long)scaleIndex * blockBytes, array.values, thatOffset + j).fma(scale, val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
+
+
+    @Override
+    int matmulGroupSize(FloatTensor that, int dim0, int dim1)
+    {
+        return USE_VECTOR_API && that instanceof ArrayFloatTensor && dim1 == columns && dim0 % ROWS == 0 ? ROWS : 1;
+    }
+
+
+    /**
+     * One kernel call per group of {@link #ROWS} rows when the rows are whole groups, see {@link #matmulGroupSize}.
+     */
+    @Override
+    void matmulRows(int row, int rows, FloatTensor input, FloatTensor out, int outOffset, int dim1)
+    {
+        if(!USE_VECTOR_API || !(input instanceof ArrayFloatTensor array) || dim1 != columns || row % ROWS != 0 || rows % ROWS != 0)
+        {
+            super.matmulRows(row, rows, input, out, outOffset, dim1);
+            return;
+        }
+        for(int r = 0; r < rows; r += ROWS)
+        {
+            matmulGroup((row + r) / ROWS, array.values, out, outOffset + r);
+        }
+    }
+
+
+    private void matmulGroup(int group, float[] x, FloatTensor out, int outOffset)
+    {
+        FloatVector val0 = FloatVector.zero(F_SPECIES);
+        FloatVector val1 = FloatVector.zero(F_SPECIES);
+        FloatVector val2 = FloatVector.zero(F_SPECIES);
+        FloatVector val3 = FloatVector.zero(F_SPECIES);
+        int scaleIndex = group * blocksPerRow * ROWS;
+        long blockOffset = (long)scaleIndex * blockBytes;
+        for(int xOffset = 0; xOffset < columns; xOffset += BLOCK_SIZE, scaleIndex += ROWS, blockOffset += (long)ROWS * blockBytes)
+        {
+            int s = scaleBase + scaleIndex;
+            val0 = blockSum(blockOffset, x, xOffset).fma(FloatVector.broadcast(F_SPECIES, scales[s]), val0);
+            val1 = blockSum(blockOffset + blockBytes, x, xOffset).fma(FloatVector.broadcast(F_SPECIES, scales[s + 1]), val1);
+            val2 = blockSum(blockOffset + 2L * blockBytes, x, xOffset).fma(FloatVector.broadcast(F_SPECIES, scales[s + 2]), val2);
+            val3 = blockSum(blockOffset + 3L * blockBytes, x, xOffset).fma(FloatVector.broadcast(F_SPECIES, scales[s + 3]), val3);
+        }
+        out.setFloat(outOffset, val0.reduceLanes(VectorOperators.ADD));
+        out.setFloat(outOffset + 1, val1.reduceLanes(VectorOperators.ADD));
+        out.setFloat(outOffset + 2, val2.reduceLanes(VectorOperators.ADD));
+        out.setFloat(outOffset + 3, val3.reduceLanes(VectorOperators.ADD));
+    }
+}
@@ -7,6 +7,7 @@ import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
@@ -80,11 +81,26 @@ public final class Q4_0FloatTensor extends FloatTensor
     }
 
 
+    @Override
+    FloatTensor matmulInput(FloatTensor that, int size)
+    {
+        if(FloatTensor.USE_Q8_ACTIVATIONS && FloatTensor.USE_VECTOR_API && size % GGUFType.Q4_0.getBlockSize() == 0)
+        {
+            return Q8ActivationTensor.quantize(that, size);
+        }
+        return that;
+    }
+
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
     {
         if(FloatTensor.USE_VECTOR_API)
         {
+            if(that instanceof Q8ActivationTensor q8)
+            {
+                return integerDot(this, thisOffset, q8, thatOffset, size);
+            }
             return vectorDot(this, thisOffset, that, thatOffset, size);
         }
         else
@@ -118,7 +134,13 @@ public final class Q4_0FloatTensor extends FloatTensor
             var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
             var loBytes = wBytes.and((byte)0xF).sub((byte)8);
             var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
-            if(F_SPECIES.vectorBitSize() == 256)
+            if(F_SPECIES.vectorBitSize() == 512)
+            {
+                var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j).mul(loBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 0));
+                val = sum0.add(sum1).fma(wScale, val);
+            }
+            else if(F_SPECIES.vectorBitSize() == 256)
             {
                 var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 0));
                 var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + 1 * F_SPECIES.length()).mul(loBytes.castShape(F_SPECIES, 1));
@@ -126,8 +148,9 @@ public final class Q4_0FloatTensor extends FloatTensor
                 var sum3 = that.getFloatVector(F_SPECIES, thatOffset + j + 3 * F_SPECIES.length()).mul(hiBytes.castShape(F_SPECIES, 1));
                 val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
             }
-            else if(F_SPECIES.vectorBitSize() == 128)
+            else
             {
+                // 128 bits, the only width left, see FloatTensor#selectSpecies
                 // This loop cannot be unrolled, why?
                 for(int i = 0; i < 2; ++i)
                 {
@@ -139,10 +162,6 @@ public final class Q4_0FloatTensor extends FloatTensor
                     val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
                 }
             }
-            else
-            {
-                throw new UnsupportedOperationException(F_SPECIES.toString());
-            }
         }
         result += val.reduceLanes(VectorOperators.ADD);
         // Remaining entries.
@@ -152,4 +171,39 @@ public final class Q4_0FloatTensor extends FloatTensor
         }
         return result;
     }
+
+
+    /**
+     * Dot product against activations quantized once per matmul: per block, int8 x int4 products are summed in
+     * 16-bit lanes (products fit in 16 bits: |w| <= 8 and |a| <= 127) and only the block sums are converted to float and scaled.
+     */
+    private static float integerDot(Q4_0FloatTensor thiz, int thisOffset, Q8ActivationTensor that, int thatOffset, int size)
+    {
+        assert thisOffset % GGUFType.Q4_0.getBlockSize() == 0 && thatOffset % Q8ActivationTensor.BLOCK_SIZE == 0;
+        assert size % GGUFType.Q4_0.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        var B_SPECIES = ByteVector.SPECIES_128;
+        var S_SPECIES = ShortVector.SPECIES_256;
+        int parts = S_SPECIES.length() / F_SPECIES.length();
+        long blockOffset = (long)thisOffset / GGUFType.Q4_0.getBlockSize() * GGUFType.Q4_0.getTypeSize();
+        int thatBlock = thatOffset / Q8ActivationTensor.BLOCK_SIZE;
+        for(int j = 0; j < size; j += GGUFType.Q4_0.getBlockSize(), blockOffset += GGUFType.Q4_0.getTypeSize(), thatBlock++)
+        {
+            float scale = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)) * that.scales[thatBlock];
+            var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte)0xF).sub((byte)8);
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+            var loActivations = ByteVector.fromArray(B_SPECIES, that.quants, thatOffset + j);
+            var hiActivations = ByteVector.fromArray(B_SPECIES, that.quants, thatOffset + j + B_SPECIES.length());
+            var products = ((ShortVector)loBytes.castShape(S_SPECIES, 0)).mul(loActivations.castShape(S_SPECIES, 0))
+                            .add(((ShortVector)hiBytes.castShape(S_SPECIES, 0)).mul(hiActivations.castShape(S_SPECIES, 0)));
+            var sum = (FloatVector)products.castShape(F_SPECIES, 0);
+            for(int part = 1; part < parts; ++part)
+            {
+                sum = sum.add(products.castShape(F_SPECIES, part));
+            }
+            val = sum.fma(FloatVector.broadcast(F_SPECIES, scale), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
 }
@@ -0,0 +1,73 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Q4_0 weights in the {@link InterleavedFloatTensor} layout, 16 bytes per block with the nibble order of GGUF: low
+ * nibbles hold quants 0..15, high nibbles quants 16..31.
+ */
+public final class Q4_0InterleavedFloatTensor extends InterleavedFloatTensor
+{
+    Q4_0InterleavedFloatTensor(int rows, int columns, MemorySegment quants, float[] scales, int scaleBase)
+    {
+        super(rows, columns, BLOCK_SIZE / 2, quants, scales, scaleBase);
+    }
+
+
+    @Override
+    InterleavedFloatTensor view(int rows, MemorySegment quants, int scaleBase)
+    {
+        return new Q4_0InterleavedFloatTensor(rows, columns, quants, scales, scaleBase);
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q4_0;
+    }
+
+
+    @Override
+    int quant(long blockOffset, int index)
+    {
+        byte packed = quants.get(ValueLayout.JAVA_BYTE, blockOffset + index % (BLOCK_SIZE / 2));
+        int quant = index < BLOCK_SIZE / 2 ? packed & 0x0F : (packed >>> 4) & 0x0F;
+        return quant - 8;
+    }
+
+
+    @Override
+    ByteVector halfBlock(long blockOffset, int index)
+    {
+        var packed = ByteVector.fromMemorySegment(ByteVector.SPECIES_128, quants, blockOffset, ByteOrder.LITTLE_ENDIAN);
+        return (index < BLOCK_SIZE / 2 ? packed.and((byte)0xF) : packed.lanewise(VectorOperators.LSHR, 4)).sub((byte)8);
+    }
+
+
+    @Override
+    FloatVector blockSum(long blockOffset, float[] x, int xOffset)
+    {
+        VectorSpecies<Byte> B_128 = ByteVector.SPECIES_128;
+        int parts = B_128.length() / F_SPECIES.length();
+        var wBytes = ByteVector.fromMemorySegment(B_128, quants, blockOffset, ByteOrder.LITTLE_ENDIAN);
+        var loBytes = wBytes.and((byte)0xF).sub((byte)8);
+        var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).sub((byte)8);
+        FloatVector sum = FloatVector.zero(F_SPECIES);
+        for(int part = 0; part < parts; part++)
+        {
+            var xLo = FloatVector.fromArray(F_SPECIES, x, xOffset + part * F_SPECIES.length());
+            var xHi = FloatVector.fromArray(F_SPECIES, x, xOffset + B_128.length() + part * F_SPECIES.length());
+            sum = ((FloatVector)loBytes.castShape(F_SPECIES, part)).fma(xLo, sum);
+            sum = ((FloatVector)hiBytes.castShape(F_SPECIES, part)).fma(xHi, sum);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGUFType#Q5_0} format.
+ * <p>
+ * Blocks of 32 values:
+ * <pre>
+ * ggml_half d;                  // scale
+ * uint8_t qh[4];                // 5-th bit of quants
+ * uint8_t qs[QK5_0 / 2];        // nibbles / quants
+ * </pre>
+ * A value is {@code d * (q - 16)}.
+ */
+public final class Q5_0FloatTensor extends FloatTensor
+{
+    static final ValueLayout.OfInt JAVA_INT_LE_UNALIGNED = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final int QH_OFFSET = Float16.BYTES;
+    static final int QS_OFFSET = QH_OFFSET + Integer.BYTES;
+    // Spreads the 32 high bits over byte lanes: the shuffles pick the qh byte holding the bit of each lane,
+    // the mask isolates that bit.
+    static final VectorShuffle<Byte> LO_HIGH_BITS_SHUFFLE = VectorShuffle.fromValues(ByteVector.SPECIES_128, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1);
+    static final VectorShuffle<Byte> HI_HIGH_BITS_SHUFFLE = VectorShuffle.fromValues(ByteVector.SPECIES_128, 2, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 3);
+    static final ByteVector HIGH_BITS_MASK = ByteVector.fromArray(ByteVector.SPECIES_128, new byte[] {1, 2, 4, 8, 16, 32, 64, (byte)128, 1, 2, 4, 8, 16, 32, 64, (byte)128}, 0);
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q5_0FloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q5_0;
+    }
+
+
+    /**
+     * Returns the 5-bit quant {@code modIndex} of the block of 32 values whose quants start at {@code qsOffset}.
+     */
+    static int quant(MemorySegment memorySegment, long qsOffset, int highBits, int modIndex)
+    {
+        int low;
+        if(modIndex < 16)
+        {
+            low = memorySegment.get(ValueLayout.JAVA_BYTE, qsOffset + modIndex) & 0x0F;
+        }
+        else
+        {
+            low = (memorySegment.get(ValueLayout.JAVA_BYTE, qsOffset + modIndex - 16) >>> 4) & 0x0F;
+        }
+        return low | (((highBits >>> modIndex) & 1) << 4);
+    }
+
+
+    /**
+     * Expands the 16 high bits selected by {@code shuffle} into byte lanes holding either 0 or 16.
+     */
+    static ByteVector highBits(int qh, VectorShuffle<Byte> shuffle)
+    {
+        return IntVector.broadcast(IntVector.SPECIES_128, qh).reinterpretAsBytes()
+                        .rearrange(shuffle)
+                        .and(HIGH_BITS_MASK)
+                        .compare(VectorOperators.NE, (byte)0)
+                        .toVector()
+                        .reinterpretAsBytes()
+                        .and((byte)0x10);
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGUFType.Q5_0.getBlockSize();
+        long blockOffset = (long)blockIndex * GGUFType.Q5_0.getTypeSize();
+        float scale = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset));
+        int highBits = memorySegment.get(JAVA_INT_LE_UNALIGNED, blockOffset + QH_OFFSET);
+        int quant = quant(memorySegment, blockOffset + QS_OFFSET, highBits, index % GGUFType.Q5_0.getBlockSize());
+        return (quant - 16) * scale;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(Q5_0FloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q5_0.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q5_0.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q5_0.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q5_0.getBlockSize() * GGUFType.Q5_0.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q5_0.getBlockSize() * GGUFType.Q5_0.getBlockSize();
+        var B_SPECIES = ByteVector.SPECIES_128;
+        int parts = B_SPECIES.length() / F_SPECIES.length();
+        for(; j < upperBound; j += GGUFType.Q5_0.getBlockSize(), blockOffset += GGUFType.Q5_0.getTypeSize())
+        {
+            var wScale = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+            int qh = thiz.memorySegment.get(JAVA_INT_LE_UNALIGNED, blockOffset + QH_OFFSET);
+            var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + QS_OFFSET, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte)0xF).or(highBits(qh, LO_HIGH_BITS_SHUFFLE)).sub((byte)16);
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(highBits(qh, HI_HIGH_BITS_SHUFFLE)).sub((byte)16);
+            var sum = FloatVector.zero(F_SPECIES);
+            for(int part = 0; part < parts; ++part)
+            {
+                sum = that.getFloatVector(F_SPECIES, thatOffset + j + part * F_SPECIES.length()).fma(loBytes.castShape(F_SPECIES, part), sum);
+                sum = that.getFloatVector(F_SPECIES, thatOffset + j + 16 + part * F_SPECIES.length()).fma(hiBytes.castShape(F_SPECIES, part), sum);
+            }
+            val = sum.fma(wScale, val);
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGUFType#Q5_1} format.
+ * <p>
+ * Same layout as {@link Q5_0FloatTensor} with an additional min per block, a value is {@code d * q + m}.
+ */
+public final class Q5_1FloatTensor extends FloatTensor
+{
+    static final int QH_OFFSET = 2 * Float16.BYTES;
+    static final int QS_OFFSET = QH_OFFSET + Integer.BYTES;
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q5_1FloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q5_1;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGUFType.Q5_1.getBlockSize();
+        long blockOffset = (long)blockIndex * GGUFType.Q5_1.getTypeSize();
+        float scale = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset));
+        float min = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES));
+        int highBits = memorySegment.get(Q5_0FloatTensor.JAVA_INT_LE_UNALIGNED, blockOffset + QH_OFFSET);
+        int quant = Q5_0FloatTensor.quant(memorySegment, blockOffset + QS_OFFSET, highBits, index % GGUFType.Q5_1.getBlockSize());
+        return quant * scale + min;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(Q5_1FloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q5_1.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q5_1.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q5_1.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q5_1.getBlockSize() * GGUFType.Q5_1.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q5_1.getBlockSize() * GGUFType.Q5_1.getBlockSize();
+        var B_SPECIES = ByteVector.SPECIES_128;
+        int parts = B_SPECIES.length() / F_SPECIES.length();
+        for(; j < upperBound; j += GGUFType.Q5_1.getBlockSize(), blockOffset += GGUFType.Q5_1.getTypeSize())
+        {
+            var wScale = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+            var wMin = FloatVector.broadcast(F_SPECIES, Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES)));
+            int qh = thiz.memorySegment.get(Q5_0FloatTensor.JAVA_INT_LE_UNALIGNED, blockOffset + QH_OFFSET);
+            var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + QS_OFFSET, ByteOrder.LITTLE_ENDIAN);
+            var loBytes = wBytes.and((byte)0xF).or(Q5_0FloatTensor.highBits(qh, Q5_0FloatTensor.LO_HIGH_BITS_SHUFFLE));
+            var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(Q5_0FloatTensor.highBits(qh, Q5_0FloatTensor.HI_HIGH_BITS_SHUFFLE));
+            for(int part = 0; part < parts; ++part)
+            {
+                var loWeights = ((FloatVector)loBytes.castShape(F_SPECIES, part)).fma(wScale, wMin);
+                var hiWeights = ((FloatVector)hiBytes.castShape(F_SPECIES, part)).fma(wScale, wMin);
+                val = that.getFloatVector(F_SPECIES, thatOffset + j + part * F_SPECIES.length()).fma(loWeights, val);
+                val = that.getFloatVector(F_SPECIES, thatOffset + j + 16 + part * F_SPECIES.length()).fma(hiWeights, val);
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.utils.Float16;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGUFType#Q5_K} format.
+ * <p>
+ * Same super-block structure as {@link Q4_KFloatTensor}, with the fifth bit of every quant stored separately:
+ * <pre>
+ * ggml_half d;                  // super-block scale for quantized scales
+ * ggml_half dmin;               // super-block scale for quantized mins
+ * uint8_t scales[12];           // scales and mins, quantized with 6 bits
+ * uint8_t qh[QK_K / 8];         // quants, high bit
+ * uint8_t qs[QK_K / 2];         // quants, low 4 bits
+ * </pre>
+ */
+public final class Q5_KFloatTensor extends FloatTensor
+{
+    static final int SCALES_OFFSET = 2 * Float16.BYTES;
+    static final int QH_OFFSET = SCALES_OFFSET + 12;
+    static final int QS_OFFSET = QH_OFFSET + GGUFType.QK_K / 8;
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q5_KFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q5_K;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGUFType.Q5_K.getBlockSize();
+        int withinBlockIndex = index % GGUFType.Q5_K.getBlockSize();
+        long blockOffset = (long)blockIndex * GGUFType.Q5_K.getTypeSize();
+        float d = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset));
+        float dmin = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES));
+        // each 64 values share 32 bytes of low quants, low nibbles first, and use 2 bits of every qh byte
+        int chunk = withinBlockIndex / 64;
+        int l = withinBlockIndex % 32;
+        boolean high = withinBlockIndex % 64 >= 32;
+        int subBlock = 2 * chunk + (high ? 1 : 0);
+        int scale = Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, subBlock, false);
+        int min = Q4_KFloatTensor.scaleMinK4(memorySegment, blockOffset + SCALES_OFFSET, subBlock, true);
+        byte quants = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QS_OFFSET + chunk * 32 + l);
+        byte highBits = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QH_OFFSET + l);
+        int quant = (high ? (quants >>> 4) & 0x0F : quants & 0x0F) | (((highBits >>> subBlock) & 1) << 4);
+        return d * scale * quant - dmin * min;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(Q5_KFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q5_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q5_K.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q5_K.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q5_K.getBlockSize() * GGUFType.Q5_K.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q5_K.getBlockSize() * GGUFType.Q5_K.getBlockSize();
+        var B_SPECIES = ByteVector.SPECIES_128;
+        int parts = B_SPECIES.length() / F_SPECIES.length();
+        for(; j < upperBound; j += GGUFType.Q5_K.getBlockSize(), blockOffset += GGUFType.Q5_K.getTypeSize())
+        {
+            float d = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset));
+            float dmin = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + Float16.BYTES));
+            for(int chunk = 0; chunk < 4; ++chunk)
+            {
+                var loScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * chunk, false));
+                var loMin = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * chunk, true));
+                var hiScale = FloatVector.broadcast(F_SPECIES, d * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * chunk + 1, false));
+                var hiMin = FloatVector.broadcast(F_SPECIES, -dmin * Q4_KFloatTensor.scaleMinK4(thiz.memorySegment, blockOffset + SCALES_OFFSET, 2 * chunk + 1, true));
+                int loIndex = thatOffset + j + chunk * 64;
+                int hiIndex = loIndex + 32;
+                for(int half = 0; half < 2; ++half)
+                {
+                    var wBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + QS_OFFSET + chunk * 32 + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var hBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + QH_OFFSET + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var loBytes = wBytes.and((byte)0xF).or(hBytes.lanewise(VectorOperators.LSHR, 2 * chunk).and((byte)1).lanewise(VectorOperators.LSHL, 4));
+                    var hiBytes = wBytes.lanewise(VectorOperators.LSHR, 4).or(hBytes.lanewise(VectorOperators.LSHR, 2 * chunk + 1).and((byte)1).lanewise(VectorOperators.LSHL, 4));
+                    for(int part = 0; part < parts; ++part)
+                    {
+                        int laneOffset = half * 16 + part * F_SPECIES.length();
+                        var loWeights = ((FloatVector)loBytes.castShape(F_SPECIES, part)).fma(loScale, loMin);
+                        var hiWeights = ((FloatVector)hiBytes.castShape(F_SPECIES, part)).fma(hiScale, hiMin);
+                        val = that.getFloatVector(F_SPECIES, loIndex + laneOffset).fma(loWeights, val);
+                        val = that.getFloatVector(F_SPECIES, hiIndex + laneOffset).fma(hiWeights, val);
+                    }
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link FloatTensor} quantized in the {@link GGUFType#Q6_K} format.
+ * <p>
+ * Super-blocks of 256 values hold 16 sub-blocks of 16 values, each one with an 8-bit signed scale:
+ * <pre>
+ * uint8_t ql[QK_K / 2];         // quants, lower 4 bits
+ * uint8_t qh[QK_K / 4];         // quants, upper 2 bits
+ * int8_t scales[QK_K / 16];     // scales, quantized with 8 bits
+ * ggml_half d;                  // super-block scale
+ * </pre>
+ * A value is {@code d * scale * (q - 32)}.
+ */
+public final class Q6_KFloatTensor extends FloatTensor
+{
+    static final int QH_OFFSET = GGUFType.QK_K / 2;
+    static final int SCALES_OFFSET = QH_OFFSET + GGUFType.QK_K / 4;
+    static final int D_OFFSET = SCALES_OFFSET + GGUFType.QK_K / 16;
+    final int size;
+    final MemorySegment memorySegment;
+
+
+    public Q6_KFloatTensor(int size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q6_K;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        assert 0 <= index && index < size;
+        int blockIndex = index / GGUFType.Q6_K.getBlockSize();
+        int withinBlockIndex = index % GGUFType.Q6_K.getBlockSize();
+        long blockOffset = (long)blockIndex * GGUFType.Q6_K.getTypeSize();
+        float d = Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset + D_OFFSET));
+        // each 128 values use 64 bytes of ql and 32 bytes of qh, split in 4 groups of 32 values
+        int chunk = withinBlockIndex / 128;
+        int group = (withinBlockIndex % 128) / 32;
+        int l = withinBlockIndex % 32;
+        byte low = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + chunk * 64 + (group % 2) * 32 + l);
+        byte high = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + QH_OFFSET + chunk * 32 + l);
+        int quant = ((group < 2 ? low & 0x0F : (low >>> 4) & 0x0F) | (((high >>> (2 * group)) & 3) << 4)) - 32;
+        byte scale = memorySegment.get(ValueLayout.JAVA_BYTE, blockOffset + SCALES_OFFSET + chunk * 8 + group * 2 + l / 16);
+        return d * scale * quant;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(FloatTensor.USE_VECTOR_API)
+        {
+            return vectorDot(this, thisOffset, that, thatOffset, size);
+        }
+        else
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+    }
+
+
+    private static float vectorDot(Q6_KFloatTensor thiz, int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        float result = 0f;
+        int j = 0;
+        // Align thisOffset + j to type().getBlockSize().
+        assert Integer.bitCount(GGUFType.Q6_K.getBlockSize()) == 1 : "power of 2";
+        int alignmentBound = Math.min(size, -thisOffset & (GGUFType.Q6_K.getBlockSize() - 1));
+        if(alignmentBound > 0)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset, that, thatOffset, alignmentBound);
+            j += alignmentBound;
+        }
+        assert j == size || (thisOffset + j) % GGUFType.Q6_K.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        long blockOffset = (long)(thisOffset + j) / GGUFType.Q6_K.getBlockSize() * GGUFType.Q6_K.getTypeSize();
+        int upperBound = j + (size - j) / GGUFType.Q6_K.getBlockSize() * GGUFType.Q6_K.getBlockSize();
+        var B_SPECIES = ByteVector.SPECIES_128;
+        int parts = B_SPECIES.length() / F_SPECIES.length();
+        for(; j < upperBound; j += GGUFType.Q6_K.getBlockSize(), blockOffset += GGUFType.Q6_K.getTypeSize())
+        {
+            float d = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset + D_OFFSET));
+            for(int chunk = 0; chunk < 2; ++chunk)
+            {
+                long qlOffset = blockOffset + chunk * 64;
+                long qhOffset = blockOffset + QH_OFFSET + chunk * 32;
+                long scalesOffset = blockOffset + SCALES_OFFSET + chunk * 8;
+                // each sub-block of 16 values is exactly one 128-bit vector of quants
+                for(int half = 0; half < 2; ++half)
+                {
+                    var lBytes0 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, qlOffset + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var lBytes1 = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, qlOffset + 32 + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    var hBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, qhOffset + half * 16, ByteOrder.LITTLE_ENDIAN);
+                    for(int group = 0; group < 4; ++group)
+                    {
+                        var lBytes = group % 2 == 0 ? lBytes0 : lBytes1;
+                        var quants = (group < 2 ? lBytes.and((byte)0xF) : lBytes.lanewise(VectorOperators.LSHR, 4))
+                                        .or(hBytes.lanewise(VectorOperators.LSHR, 2 * group).and((byte)3).lanewise(VectorOperators.LSHL, 4))
+                                        .sub((byte)32);
+                        float scale = d * thiz.memorySegment.get(ValueLayout.JAVA_BYTE, scalesOffset + group * 2 + half);
+                        int index = thatOffset + j + chunk * 128 + group * 32 + half * 16;
+                        var sum = FloatVector.zero(F_SPECIES);
+                        for(int part = 0; part < parts; ++part)
+                        {
+                            sum = that.getFloatVector(F_SPECIES, index + part * F_SPECIES.length()).fma(quants.castShape(F_SPECIES, part), sum);
+                        }
+                        val = sum.fma(FloatVector.broadcast(F_SPECIES, scale), val);
+                    }
+                }
+            }
+        }
+        result += val.reduceLanes(VectorOperators.ADD);
+        // Remaining entries.
+        if(j < size)
+        {
+            result += FloatTensor.scalarDot(thiz, thisOffset + j, that, thatOffset + j, size - j);
+        }
+        return result;
+    }
+}
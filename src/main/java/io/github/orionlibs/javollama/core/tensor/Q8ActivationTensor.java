@@ -0,0 +1,89 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Activation vector quantized to 8 bits in blocks of 32 values, with one float scale per block.
+ * <p>
+ * Built once per matmul from the float input, so that quantized weights can be dotted against it with
+ * integer multiply-accumulates instead of widening every weight to a float, see {@link FloatTensor#USE_Q8_ACTIVATIONS}.
+ */
+public final class Q8ActivationTensor extends FloatTensor
+{
+    static final int BLOCK_SIZE = 32;
+    final int size;
+    final byte[] quants;
+    final float[] scales;
+
+
+    Q8ActivationTensor(int size)
+    {
+        assert size % BLOCK_SIZE == 0;
+        this.size = size;
+        this.quants = new byte[size];
+        this.scales = new float[size / BLOCK_SIZE];
+    }
+
+
+    /**
+     * Quantizes {@code that[0 ... size)}, symmetric with the largest magnitude of each block mapped to 127.
+     */
+    public static Q8ActivationTensor quantize(FloatTensor that, int size)
+    {
+        Q8ActivationTensor result = new Q8ActivationTensor(size);
+        for(int block = 0; block < size / BLOCK_SIZE; block++)
+        {
+            int blockStart = block * BLOCK_SIZE;
+            float amax = 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                amax = Math.max(amax, Math.abs(that.getFloat(blockStart + i)));
+            }
+            float scale = amax / 127f;
+            float inverseScale = scale != 0f ? 1f / scale : 0f;
+            for(int i = 0; i < BLOCK_SIZE; i++)
+            {
+                result.quants[blockStart + i] = (byte)Math.round(that.getFloat(blockStart + i) * inverseScale);
+            }
+            result.scales[block] = scale;
+        }
+        return result;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        return quants[index] * scales[index / BLOCK_SIZE];
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        throw new UnsupportedOperationException("setFloat");
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        throw new UnsupportedOperationException("getFloatVector");
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q8_0;
+    }
+}
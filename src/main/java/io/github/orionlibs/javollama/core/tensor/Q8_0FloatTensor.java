@@ -7,11 +7,15 @@ import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
 
 public final class Q8_0FloatTensor extends FloatTensor
 {
+    // bytes loaded at once by getFloatVector, at least as many as F_SPECIES has lanes and at least 64 bits
+    static final VectorSpecies<Byte> B_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, F_SPECIES.vectorBitSize() / 4)));
     final int size;
     final MemorySegment memorySegment;
 
@@ -37,10 +41,70 @@ public final class Q8_0FloatTensor extends FloatTensor
     }
 
 
+    /**
+     * {@code species.length()} consecutive values. Used where the tensor is read as an operand, e.g. the value cache
+     * summed into the attention output; fast when they start at a multiple of {@code species.length()}, so that they lie
+     * in a single block.
+     */
     @Override
     FloatVector getFloatVector(VectorSpecies<Float> species, int index)
     {
-        throw new UnsupportedOperationException("getFloatVector");
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        if(species != F_SPECIES || index % species.length() != 0)
+        {
+            float[] values = new float[species.length()];
+            for(int i = 0; i < values.length; i++)
+            {
+                values[i] = getFloat(index + i);
+            }
+            return FloatVector.fromArray(species, values, 0);
+        }
+        int withinBlockIndex = index % GGUFType.Q8_0.getBlockSize();
+        long blockOffset = (long)(index / GGUFType.Q8_0.getBlockSize()) * GGUFType.Q8_0.getTypeSize();
+        // the bytes are loaded B_SPECIES.length() at a time, which widen into one or more float vectors
+        int loadIndex = withinBlockIndex - withinBlockIndex % B_SPECIES.length();
+        var bytes = ByteVector.fromMemorySegment(B_SPECIES, memorySegment, blockOffset + Float16.BYTES + loadIndex, ByteOrder.LITTLE_ENDIAN);
+        var values = (FloatVector)bytes.castShape(species, (withinBlockIndex - loadIndex) / species.length());
+        return values.mul(Float.float16ToFloat(memorySegment.get(JAVA_SHORT_LE, blockOffset)));
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    /**
+     * Quantizes the source into this tensor, symmetric with the largest magnitude of each block mapped to 127, the way
+     * llama.cpp quantizes to Q8_0. The range must cover whole blocks.
+     */
+    @Override
+    void copyFrom(float[] source, int sourceOffset, int thisOffset, int size)
+    {
+        int blockSize = GGUFType.Q8_0.getBlockSize();
+        assert thisOffset % blockSize == 0 && size % blockSize == 0;
+        for(int j = 0; j < size; j += blockSize)
+        {
+            long blockOffset = (long)((thisOffset + j) / blockSize) * GGUFType.Q8_0.getTypeSize();
+            float amax = 0f;
+            for(int i = 0; i < blockSize; i++)
+            {
+                amax = Math.max(amax, Math.abs(source[sourceOffset + j + i]));
+            }
+            float scale = amax / 127f;
+            float inverseScale = scale != 0f ? 1f / scale : 0f;
+            memorySegment.set(JAVA_SHORT_LE, blockOffset, Float.floatToFloat16(scale));
+            for(int i = 0; i < blockSize; i++)
+            {
+                byte quant = (byte)Math.round(source[sourceOffset + j + i] * inverseScale);
+                memorySegment.set(ValueLayout.JAVA_BYTE, blockOffset + Float16.BYTES + i, quant);
+            }
+        }
     }
 
 
@@ -67,11 +131,26 @@ public final class Q8_0FloatTensor extends FloatTensor
     public static final ValueLayout.OfShort JAVA_SHORT_LE = ValueLayout.JAVA_SHORT.withOrder(ByteOrder.LITTLE_ENDIAN);
 
 
+    @Override
+    FloatTensor matmulInput(FloatTensor that, int size)
+    {
+        if(FloatTensor.USE_Q8_ACTIVATIONS && FloatTensor.USE_VECTOR_API && size % GGUFType.Q8_0.getBlockSize() == 0)
+        {
+            return Q8ActivationTensor.quantize(that, size);
+        }
+        return that;
+    }
+
+
     @Override
     public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
     {
         if(FloatTensor.USE_VECTOR_API)
         {
+            if(that instanceof Q8ActivationTensor q8)
+            {
+                return integerDot(this, thisOffset, q8, thatOffset, size);
+            }
             return vectorDot(this, thisOffset, that, thatOffset, size);
         }
         else
@@ -101,7 +180,14 @@ public final class Q8_0FloatTensor extends FloatTensor
         {
             float wScaleValue = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset));
             var wScale = FloatVector.broadcast(F_SPECIES, wScaleValue);
-            if(F_SPECIES.vectorBitSize() == 256)
+            if(F_SPECIES.vectorBitSize() == 512)
+            {
+                var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+                var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j).mul(wBytes.castShape(F_SPECIES, 0));
+                var sum1 = that.getFloatVector(F_SPECIES, thatOffset + j + F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 1));
+                val = sum0.add(sum1).fma(wScale, val);
+            }
+            else if(F_SPECIES.vectorBitSize() == 256)
             {
                 var wBytes = ByteVector.fromMemorySegment(ByteVector.SPECIES_256, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
                 var sum0 = that.getFloatVector(F_SPECIES, thatOffset + j + 0 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 0));
@@ -110,8 +196,9 @@ public final class Q8_0FloatTensor extends FloatTensor
                 var sum3 = that.getFloatVector(F_SPECIES, thatOffset + j + 3 * F_SPECIES.length()).mul(wBytes.castShape(F_SPECIES, 3));
                 val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
             }
-            else if(F_SPECIES.vectorBitSize() == 128)
+            else
             {
+                // 128 bits, the only width left, see FloatTensor#selectSpecies
                 VectorSpecies<Byte> B_128 = ByteVector.SPECIES_128;
                 // This loop cannot be unrolled, why?
                 for(int i = 0; i < 2; ++i)
@@ -124,10 +211,6 @@ public final class Q8_0FloatTensor extends FloatTensor
                     val = sum0.add(sum1).add(sum2).add(sum3).fma(wScale, val);
                 }
             }
-            else
-            {
-                throw new UnsupportedOperationException(F_SPECIES.toString());
-            }
         }
         result += val.reduceLanes(VectorOperators.ADD);
         // Remaining entries.
@@ -137,4 +220,38 @@ public final class Q8_0FloatTensor extends FloatTensor
         }
         return result;
     }
+
+
+    /**
+     * Dot product against activations quantized once per matmul: per block, int8 x int8 products are summed in
+     * 16-bit lanes (sums of two products fit in 16 bits: |w| <= 128 and |a| <= 127) and only the block sums are converted to float and scaled.
+     */
+    private static float integerDot(Q8_0FloatTensor thiz, int thisOffset, Q8ActivationTensor that, int thatOffset, int size)
+    {
+        assert thisOffset % GGUFType.Q8_0.getBlockSize() == 0 && thatOffset % Q8ActivationTensor.BLOCK_SIZE == 0;
+        assert size % GGUFType.Q8_0.getBlockSize() == 0;
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        var B_SPECIES = ByteVector.SPECIES_128;
+        var S_SPECIES = ShortVector.SPECIES_256;
+        int parts = S_SPECIES.length() / F_SPECIES.length();
+        long blockOffset = (long)thisOffset / GGUFType.Q8_0.getBlockSize() * GGUFType.Q8_0.getTypeSize();
+        int thatBlock = thatOffset / Q8ActivationTensor.BLOCK_SIZE;
+        for(int j = 0; j < size; j += GGUFType.Q8_0.getBlockSize(), blockOffset += GGUFType.Q8_0.getTypeSize(), thatBlock++)
+        {
+            float scale = Float.float16ToFloat(thiz.memorySegment.get(JAVA_SHORT_LE, blockOffset)) * that.scales[thatBlock];
+            var loBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES, ByteOrder.LITTLE_ENDIAN);
+            var hiBytes = ByteVector.fromMemorySegment(B_SPECIES, thiz.memorySegment, blockOffset + Float16.BYTES + B_SPECIES.length(), ByteOrder.LITTLE_ENDIAN);
+            var loActivations = ByteVector.fromArray(B_SPECIES, that.quants, thatOffset + j);
+            var hiActivations = ByteVector.fromArray(B_SPECIES, that.quants, thatOffset + j + B_SPECIES.length());
+            var products = ((ShortVector)loBytes.castShape(S_SPECIES, 0)).mul(loActivations.castShape(S_SPECIES, 0))
+                            .add(((ShortVector)hiBytes.castShape(S_SPECIES, 0)).mul(hiActivations.castShape(S_SPECIES, 0)));
+            var sum = (FloatVector)products.castShape(F_SPECIES, 0);
+            for(int part = 1; part < parts; ++part)
+            {
+                sum = sum.add(products.castShape(F_SPECIES, part));
+            }
+            val = sum.fma(FloatVector.broadcast(F_SPECIES, scale), val);
+        }
+        return val.reduceLanes(VectorOperators.ADD);
+    }
 }
@@ -0,0 +1,67 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Q8_0 weights in the {@link InterleavedFloatTensor} layout, 32 signed bytes per block.
+ */
+public final class Q8_0InterleavedFloatTensor extends InterleavedFloatTensor
+{
+    Q8_0InterleavedFloatTensor(int rows, int columns, MemorySegment quants, float[] scales, int scaleBase)
+    {
+        super(rows, columns, BLOCK_SIZE, quants, scales, scaleBase);
+    }
+
+
+    @Override
+    InterleavedFloatTensor view(int rows, MemorySegment quants, int scaleBase)
+    {
+        return new Q8_0InterleavedFloatTensor(rows, columns, quants, scales, scaleBase);
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.Q8_0;
+    }
+
+
+    @Override
+    int quant(long blockOffset, int index)
+    {
+        return quants.get(ValueLayout.JAVA_BYTE, blockOffset + index);
+    }
+
+
+    @Override
+    ByteVector halfBlock(long blockOffset, int index)
+    {
+        return ByteVector.fromMemorySegment(ByteVector.SPECIES_128, quants, blockOffset + index / 16 * 16, ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    @Override
+    FloatVector blockSum(long blockOffset, float[] x, int xOffset)
+    {
+        VectorSpecies<Byte> B_128 = ByteVector.SPECIES_128;
+        int parts = B_128.length() / F_SPECIES.length();
+        FloatVector sum = FloatVector.zero(F_SPECIES);
+        for(int half = 0; half < 2; half++)
+        {
+            var wBytes = ByteVector.fromMemorySegment(B_128, quants, blockOffset + half * B_128.length(), ByteOrder.LITTLE_ENDIAN);
+            for(int part = 0; part < parts; part++)
+            {
+                var x0 = FloatVector.fromArray(F_SPECIES, x, xOffset + half * B_128.length() + part * F_SPECIES.length());
+                sum = ((FloatVector)wBytes.castShape(F_SPECIES, part)).fma(x0, sum);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,155 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Mutable {@link GGUFType#F32} {@link FloatTensor} allocated off-heap, used for the key/value caches.
+ * <p>
+ * The memory is allocated outside of the Java heap, so it is neither scanned nor moved by the garbage collector, and it
+ * is addressed with {@code long} offsets: a single allocation may hold more than 2^31 floats, and is handed out to its
+ * users as {@link #slice slices}, each within the {@code int} indexing of {@link FloatTensor}.
+ */
+public final class SegmentFloatTensor extends FloatTensor
+{
+    final long size;
+    final MemorySegment memorySegment;
+
+
+    public SegmentFloatTensor(long size, MemorySegment memorySegment)
+    {
+        this.size = size;
+        this.memorySegment = memorySegment;
+    }
+
+
+    /**
+     * Allocates {@code size} zeroed floats, released once the tensor and all its slices are unreachable.
+     */
+    public static SegmentFloatTensor allocate(long size)
+    {
+        return new SegmentFloatTensor(size, Arena.ofAuto().allocate(size * Float.BYTES, 64));
+    }
+
+
+    /**
+     * The floats {@code [offset, offset + size)} of this tensor, sharing its memory.
+     */
+    public SegmentFloatTensor slice(long offset, int size)
+    {
+        return new SegmentFloatTensor(size, memorySegment.asSlice(offset * Float.BYTES, (long)size * Float.BYTES));
+    }
+
+
+    public long longSize()
+    {
+        return size;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return Math.toIntExact(size);
+    }
+
+
+    public float getFloat(long index)
+    {
+        return memorySegment.getAtIndex(JAVA_FLOAT_LE, index);
+    }
+
+
+    public void setFloat(long index, float value)
+    {
+        memorySegment.setAtIndex(JAVA_FLOAT_LE, index, value);
+    }
+
+
+    @Override
+    public float getFloat(int index)
+    {
+        return getFloat((long)index);
+    }
+
+
+    @Override
+    public void setFloat(int index, float value)
+    {
+        setFloat((long)index, value);
+    }
+
+
+    @Override
+    FloatVector getFloatVector(VectorSpecies<Float> species, int index)
+    {
+        if(!USE_VECTOR_API)
+        {
+            throw new UnsupportedOperationException();
+        }
+        return FloatVector.fromMemorySegment(species, memorySegment, (long)index * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    @Override
+    boolean hasFloatVectors()
+    {
+        return true;
+    }
+
+
+    @Override
+    public GGUFType type()
+    {
+        return GGUFType.F32;
+    }
+
+
+    @Override
+    public float dot(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(!USE_VECTOR_API || !(that instanceof ArrayFloatTensor array))
+        {
+            return FloatTensor.scalarDot(this, thisOffset, that, thatOffset, size);
+        }
+        FloatVector val = FloatVector.zero(F_SPECIES);
+        int upperBound = F_SPECIES.loopBound(size);
+        for(int i = 0; i < upperBound; i += F_SPECIES.length())
+        {
+            FloatVector b = FloatVector.fromArray(F_SPECIES, array.values, thatOffset + i);
+            val = getFloatVector(F_SPECIES, thisOffset + i).fma(b, val);
+        }
+        float result = val.reduceLanes(VectorOperators.ADD);
+        for(int i = upperBound; i < size; i++)
+        {
+            result += getFloat(thisOffset + i) * array.values[thatOffset + i];
+        }
+        return result;
+    }
+
+
+    @Override
+    void copyFrom(float[] source, int sourceOffset, int thisOffset, int size)
+    {
+        MemorySegment.copy(source, sourceOffset, memorySegment, JAVA_FLOAT_LE, (long)thisOffset * Float.BYTES, size);
+    }
+
+
+    @Override
+    public void copyTo(int thisOffset, FloatTensor that, int thatOffset, int size)
+    {
+        if(that instanceof ArrayFloatTensor array)
+        {
+            MemorySegment.copy(memorySegment, JAVA_FLOAT_LE, (long)thisOffset * Float.BYTES, array.values, thatOffset, size);
+        }
+        else
+        {
+            super.copyTo(thisOffset, that, thatOffset, size);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package io.github.orionlibs.javollama.core.utils;
+
+public final class BFloat16
+{
+    public static final int BYTES = 2;
+}
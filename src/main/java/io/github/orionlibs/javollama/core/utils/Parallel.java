@@ -1,12 +1,61 @@
 package io.github.orionlibs.javollama.core.utils;
 
 import java.util.function.IntConsumer;
-import java.util.stream.IntStream;
 
 public final class Parallel
 {
+    private static volatile WorkerPool pool;
+
+
+    /**
+     * Sets the number of threads, including the calling one, the inference loops are split across.
+     * A value less than 1 selects the number of available processors.
+     */
+    public static synchronized void configure(int threads)
+    {
+        int parallelism = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        WorkerPool previous = pool;
+        if(previous == null || previous.parallelism() != parallelism)
+        {
+            pool = new WorkerPool(parallelism);
+            if(previous != null)
+            {
+                // lets the loop already running on it finish, callers still holding it run their later loops inline
+                previous.close();
+            }
+        }
+    }
+
+
+    /**
+     * Number of threads the inference loops are split across.
+     */
+    public static int parallelism()
+    {
+        return pool().parallelism();
+    }
+
+
     public static void parallelFor(int startInclusive, int endExclusive, IntConsumer action)
     {
-        IntStream.range(startInclusive, endExclusive).parallel().forEach(action);
+        pool().parallelFor(startInclusive, endExclusive, action);
+    }
+
+
+    private static WorkerPool pool()
+    {
+        WorkerPool current = pool;
+        if(current == null)
+        {
+            synchronized(Parallel.class)
+            {
+                if(pool == null)
+                {
+                    configure(0);
+                }
+                current = pool;
+            }
+        }
+        return current;
     }
 }
@@ -0,0 +1,260 @@
+package io.github.orionlibs.javollama.core.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Dedicated executor for the inference loops.
+ * <p>
+ * A fixed set of long-lived daemon workers plus the calling thread split each loop into contiguous, equally sized
+ * ranges, one per thread. Between loops the workers spin for a while before parking, so that the back-to-back loops of
+ * a forward pass hand over without a wake-up. One loop runs at a time. A loop nested in a loop of this pool runs inline
+ * on the thread that issues it. Loops from other threads, e.g. concurrent requests or the batch scheduler, wait for
+ * their turn in arrival order, so every loop is split over the dedicated threads and the pool never oversubscribes the
+ * processors. Loops issued once the pool is closed run inline on their caller.
+ */
+public final class WorkerPool implements AutoCloseable
+{
+    // Number of Thread.onSpinWait() iterations a thread waits for the next loop, or for the other threads, before parking.
+    static final int SPIN_ITERATIONS = Integer.parseInt(System.getProperty("llama.WorkerSpins", "20000"));
+    private final int parallelism;
+    // spinning only pays off when every thread has a processor, otherwise it steals time from the thread waited on
+    private final int spinIterations;
+    private final Worker[] workers;
+    // held by the thread issuing the current loop, fair so that concurrent callers take turns
+    private final ReentrantLock busy = new ReentrantLock(true);
+    private final AtomicInteger pending = new AtomicInteger();
+    // current loop, published to the workers by the volatile write of generation
+    private int loopStart;
+    private int loopEnd;
+    private IntConsumer loopAction;
+    private volatile Thread owner;
+    private volatile Throwable failure;
+    private volatile long generation;
+    private volatile boolean closed;
+
+
+    public WorkerPool(int parallelism)
+    {
+        if(parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism must be positive, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.spinIterations = parallelism <= Runtime.getRuntime().availableProcessors() ? SPIN_ITERATIONS : 0;
+        this.workers = new Worker[parallelism - 1];
+        for(int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new Worker(i + 1);
+            workers[i].start();
+        }
+    }
+
+
+    public int parallelism()
+    {
+        return parallelism;
+    }
+
+
+    public void parallelFor(int startInclusive, int endExclusive, IntConsumer action)
+    {
+        if(endExclusive - startInclusive <= 1 || parallelism == 1)
+        {
+            runRange(startInclusive, endExclusive, action);
+            return;
+        }
+        if(inLoop())
+        {
+            runRange(startInclusive, endExclusive, action);
+            return;
+        }
+        busy.lock();
+        try
+        {
+            if(closed)
+            {
+                runRange(startInclusive, endExclusive, action);
+                return;
+            }
+            owner = Thread.currentThread();
+            failure = null;
+            loopStart = startInclusive;
+            loopEnd = endExclusive;
+            loopAction = action;
+            pending.set(workers.length);
+            generation++;
+            for(Worker worker : workers)
+            {
+                if(worker.parked)
+                {
+                    LockSupport.unpark(worker);
+                }
+            }
+            try
+            {
+                runPartition(0);
+            }
+            catch(Throwable e)
+            {
+                failure = e;
+            }
+            awaitWorkers();
+            Throwable e = failure;
+            if(e instanceof RuntimeException runtimeException)
+            {
+                throw runtimeException;
+            }
+            if(e instanceof Error error)
+            {
+                throw error;
+            }
+        }
+        finally
+        {
+            loopAction = null;
+            owner = null;
+            busy.unlock();
+        }
+    }
+
+
+    /**
+     * Waits for the loop in progress, if any, then stops the workers. Must not be called from a loop of this pool.
+     */
+    @Override
+    public void close()
+    {
+        if(inLoop())
+        {
+            throw new IllegalStateException("Cannot close the worker pool from one of its loops");
+        }
+        busy.lock();
+        try
+        {
+            closed = true;
+            for(Worker worker : workers)
+            {
+                LockSupport.unpark(worker);
+            }
+        }
+        finally
+        {
+            busy.unlock();
+        }
+    }
+
+
+    // whether the current thread runs a loop of this pool, as its caller or as one of its workers
+    private boolean inLoop()
+    {
+        return busy.isHeldByCurrentThread() || (Thread.currentThread() instanceof Worker worker && worker.pool() == this);
+    }
+
+
+    private void awaitWorkers()
+    {
+        int spins = 0;
+        while(pending.get() != 0)
+        {
+            if(spins < spinIterations)
+            {
+                spins++;
+                Thread.onSpinWait();
+            }
+            else
+            {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+
+    private void runPartition(int index)
+    {
+        long size = loopEnd - loopStart;
+        int start = (int)(loopStart + size * index / parallelism);
+        int end = (int)(loopStart + size * (index + 1) / parallelism);
+        runRange(start, end, loopAction);
+    }
+
+
+    private static void runRange(int startInclusive, int endExclusive, IntConsumer action)
+    {
+        for(int i = startInclusive; i < endExclusive; i++)
+        {
+            action.accept(i);
+        }
+    }
+
+
+    private final class Worker extends Thread
+    {
+        private final int index;
+        private volatile boolean parked;
+
+
+        Worker(int index)
+        {
+            super("javollama-worker-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+
+        WorkerPool pool()
+        {
+            return WorkerPool.this;
+        }
+
+
+        @Override
+        public void run()
+        {
+            long seen = 0;
+            while(true)
+            {
+                int spins = 0;
+                long current;
+                while((current = generation) == seen && !closed)
+                {
+                    if(spins < spinIterations)
+                    {
+                        spins++;
+                        Thread.onSpinWait();
+                    }
+                    else
+                    {
+                        // the owner publishes the loop before it reads parked, we publish parked before we re-read the loop
+                        parked = true;
+                        if(generation == seen && !closed)
+                        {
+                            LockSupport.park(WorkerPool.this);
+                        }
+                        parked = false;
+                    }
+                }
+                if(closed)
+                {
+                    return;
+                }
+                seen = current;
+                Thread loopOwner = owner;
+                try
+                {
+                    runPartition(index);
+                }
+                catch(Throwable e)
+                {
+                    failure = e;
+                }
+                if(pending.decrementAndGet() == 0)
+                {
+                    LockSupport.unpark(loopOwner);
+                }
+            }
+        }
+    }
+}
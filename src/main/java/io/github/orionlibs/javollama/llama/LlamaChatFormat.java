@@ -41,6 +41,13 @@ public class LlamaChatFormat extends ChatFormat
     }
 
 
+    @Override
+    public int getEndOfTurn()
+    {
+        return endOfTurn;
+    }
+
+
     @Override
     public List<Integer> encodeHeader(Message message)
     {
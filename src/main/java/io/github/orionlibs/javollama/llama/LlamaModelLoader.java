@@ -6,11 +6,14 @@ import io.github.orionlibs.javollama.core.RotaryPositionEmbeddings;
 import io.github.orionlibs.javollama.core.Tokenizer;
 import io.github.orionlibs.javollama.core.Vocabulary;
 import io.github.orionlibs.javollama.core.Weights;
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
 import io.github.orionlibs.javollama.core.gguf.GPTGeneratedUnifiedFormat;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
 import io.github.orionlibs.javollama.core.tensor.GGUFTensorEntry;
+import io.github.orionlibs.javollama.core.tensor.InterleavedFloatTensor;
 import io.github.orionlibs.javollama.core.utils.Pair;
+import io.github.orionlibs.javollama.options.LLMOptions;
 import java.io.IOException;
-import java.nio.FloatBuffer;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
@@ -24,9 +27,85 @@ public class LlamaModelLoader extends ModelLoader
     private static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
 
 
+    private final boolean stackQKV;
+    private final boolean repackWeights;
+    // type the weights of each class are dequantized to at load time, null keeps them as stored in the file
+    private final GGUFType dequantizeAttention;
+    private final GGUFType dequantizeFeedForward;
+    private final GGUFType dequantizeClassifier;
+    private final GGUFType kvCacheType;
+    private final int statePoolSize;
+    private final long stateIdleTimeoutMillis;
+    private final long prefixCacheBytes;
+    private final int maximumBatchSize;
+
+
     public LlamaModelLoader()
     {
         super(TOKENIZER_LLAMA_3_MODEL, LLAMA_3_PATTERN);
+        this.stackQKV = false;
+        this.repackWeights = false;
+        this.dequantizeAttention = null;
+        this.dequantizeFeedForward = null;
+        this.dequantizeClassifier = null;
+        this.kvCacheType = GGUFType.F32;
+        this.statePoolSize = LlamaProcessor.DEFAULT_STATE_POOL_SIZE;
+        this.stateIdleTimeoutMillis = 0;
+        this.prefixCacheBytes = 0;
+        this.maximumBatchSize = LlamaProcessor.DEFAULT_MAXIMUM_BATCH_SIZE;
+    }
+
+
+    public LlamaModelLoader(LLMOptions options)
+    {
+        super(TOKENIZER_LLAMA_3_MODEL, LLAMA_3_PATTERN);
+        this.stackQKV = (boolean)options.getOptionValue("stackQKVWeights");
+        this.repackWeights = (boolean)options.getOptionValue("repackWeights");
+        this.dequantizeAttention = dequantizeType((String)options.getOptionValue("dequantizeAttentionWeights"));
+        this.dequantizeFeedForward = dequantizeType((String)options.getOptionValue("dequantizeFeedForwardWeights"));
+        this.dequantizeClassifier = dequantizeType((String)options.getOptionValue("dequantizeClassifierWeights"));
+        this.kvCacheType = kvCacheType((String)options.getOptionValue("kvCacheType"));
+        this.statePoolSize = (int)options.getOptionValue("statePoolSize");
+        this.stateIdleTimeoutMillis = 1000L * (int)options.getOptionValue("stateIdleTimeoutSeconds");
+        this.prefixCacheBytes = 1024L * 1024L * (int)options.getOptionValue("prefixCacheSizeMB");
+        this.maximumBatchSize = (int)options.getOptionValue("maximumBatchSize");
+    }
+
+
+    private static GGUFType dequantizeType(String value)
+    {
+        if(value == null || value.isBlank() || value.equalsIgnoreCase("none"))
+        {
+            return null;
+        }
+        return switch(value.trim().toUpperCase())
+        {
+            case "F16" -> GGUFType.F16;
+            case "F32" -> GGUFType.F32;
+            default -> throw new IllegalArgumentException("expected none, F16 or F32 but found " + value);
+        };
+    }
+
+
+    private static GGUFType kvCacheType(String value)
+    {
+        if(value == null || value.isBlank())
+        {
+            return GGUFType.F32;
+        }
+        return switch(value.trim().toUpperCase())
+        {
+            case "F32" -> GGUFType.F32;
+            case "F16" -> GGUFType.F16;
+            case "Q8_0" -> GGUFType.Q8_0;
+            default -> throw new IllegalArgumentException("expected F32, F16 or Q8_0 but found " + value);
+        };
+    }
+
+
+    private static GGUFTensorEntry dequantizeTo(GGUFTensorEntry entry, GGUFType ggmlType)
+    {
+        return ggmlType != null ? dequantize(entry, ggmlType) : entry;
     }
 
 
@@ -61,28 +140,60 @@ public class LlamaModelLoader extends ModelLoader
         float loFreqFactor = 1;
         float hiFreqFactor = 3;
         int oldContextLength = 8192;
-        Pair<float[], float[]> ropeFreqs = RotaryPositionEmbeddings.precomputeFreqsCis(config.contextLength, config.headSize, config.ropeTheta,
-                        ropeScaling, scaleFactor, loFreqFactor, hiFreqFactor, oldContextLength);
-        float[] ropeFreqsReal = ropeFreqs.first();
-        float[] ropeFreqsImag = ropeFreqs.second();
+        RotaryPositionEmbeddings rope = new RotaryPositionEmbeddings(config.contextLength, config.headSize, config.ropeTheta,
+                        ropeScaling, scaleFactor, loFreqFactor, hiFreqFactor, oldContextLength, maximumBatchSize);
         Map<String, GGUFTensorEntry> tensorEntries = gguf.getTensorEntries();
+        FloatTensor[] wq = new FloatTensor[config.numberOfLayers];
+        FloatTensor[] wk = new FloatTensor[config.numberOfLayers];
+        FloatTensor[] wv = new FloatTensor[config.numberOfLayers];
+        FloatTensor[] wqkv = stackQKV ? new FloatTensor[config.numberOfLayers] : null;
+        for(int i = 0; i < config.numberOfLayers; i++)
+        {
+            GGUFTensorEntry q = dequantizeTo(tensorEntries.get("blk." + i + ".attn_q.weight"), dequantizeAttention);
+            GGUFTensorEntry k = dequantizeTo(tensorEntries.get("blk." + i + ".attn_k.weight"), dequantizeAttention);
+            GGUFTensorEntry v = dequantizeTo(tensorEntries.get("blk." + i + ".attn_v.weight"), dequantizeAttention);
+            GGUFTensorEntry qkv = stackQKV ? stack("blk." + i + ".attn_qkv.weight", q, k, v) : null;
+            if(qkv != null)
+            {
+                // q, k and v become views of the stacked copy, the mapped originals are no longer touched
+                wqkv[i] = loadWeight(qkv, repackWeights);
+                if(wqkv[i] instanceof InterleavedFloatTensor interleaved)
+                {
+                    wq[i] = interleaved.rows(0, q.shape()[1]);
+                    wk[i] = interleaved.rows(q.shape()[1], k.shape()[1]);
+                    wv[i] = interleaved.rows(q.shape()[1] + k.shape()[1], v.shape()[1]);
+                }
+                else
+                {
+                    wq[i] = loadQuantized(slice(qkv, q.name(), 0, q.shape()[1]));
+                    wk[i] = loadQuantized(slice(qkv, k.name(), q.shape()[1], k.shape()[1]));
+                    wv[i] = loadQuantized(slice(qkv, v.name(), q.shape()[1] + k.shape()[1], v.shape()[1]));
+                }
+            }
+            else
+            {
+                wq[i] = loadWeight(q, repackWeights);
+                wk[i] = loadWeight(k, repackWeights);
+                wv[i] = loadWeight(v, repackWeights);
+            }
+        }
         Weights qw = new Weights(
                         loadQuantized(tensorEntries.get("token_embd.weight")),
-                        loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
-                        loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
-                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
-                        toFloatBuffer(tensorEntries.get("output_norm.weight")),
-                        FloatBuffer.wrap(ropeFreqsReal),
-                        FloatBuffer.wrap(ropeFreqsImag),
-                        loadQuantized(tensorEntries.get("output.weight"))
+                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
+                        wq,
+                        wk,
+                        wv,
+                        wqkv,
+                        loadArrayOfWeights(config.numberOfLayers, i -> dequantizeTo(tensorEntries.get("blk." + i + ".attn_output.weight"), dequantizeAttention), repackWeights),
+                        loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
+                        loadArrayOfWeights(config.numberOfLayers, i -> dequantizeTo(tensorEntries.get("blk." + i + ".ffn_gate.weight"), dequantizeFeedForward), repackWeights), // w1
+                        loadArrayOfWeights(config.numberOfLayers, i -> dequantizeTo(tensorEntries.get("blk." + i + ".ffn_down.weight"), dequantizeFeedForward), repackWeights), // w2
+                        loadArrayOfWeights(config.numberOfLayers, i -> dequantizeTo(tensorEntries.get("blk." + i + ".ffn_up.weight"), dequantizeFeedForward), repackWeights), // w3
+                        loadQuantized(tensorEntries.get("output_norm.weight")),
+                        rope,
+                        loadWeight(dequantizeTo(tensorEntries.get("output.weight"), dequantizeClassifier), repackWeights)
         );
-        return new LlamaProcessor(config, tokenizer, qw);
+        return new LlamaProcessor(config, tokenizer, qw, kvCacheType, statePoolSize, stateIdleTimeoutMillis, prefixCacheBytes, maximumBatchSize);
     }
 
 
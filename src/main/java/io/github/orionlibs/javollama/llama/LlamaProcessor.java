@@ -1,28 +1,163 @@
 package io.github.orionlibs.javollama.llama;
 
+import io.github.orionlibs.javollama.core.BatchScheduler;
 import io.github.orionlibs.javollama.core.Configuration;
+import io.github.orionlibs.javollama.core.KVBlockPool;
 import io.github.orionlibs.javollama.core.LLMProcessor;
+import io.github.orionlibs.javollama.core.PrefixCache;
+import io.github.orionlibs.javollama.core.Response;
 import io.github.orionlibs.javollama.core.State;
+import io.github.orionlibs.javollama.core.StatePool;
 import io.github.orionlibs.javollama.core.Tokenizer;
 import io.github.orionlibs.javollama.core.Weights;
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 public final class LlamaProcessor extends LLMProcessor
 {
+    // number of idle states kept for reuse by default
+    public static final int DEFAULT_STATE_POOL_SIZE = 4;
+    // number of sequences decoded together by default
+    public static final int DEFAULT_MAXIMUM_BATCH_SIZE = 8;
+    // key/value cache blocks shared by the states of this model
+    private final KVBlockPool kvBlockPool;
+    private final StatePool statePool;
+    private final PrefixCache prefixCache;
+    private final int maximumBatchSize;
+    // started on first use
+    private BatchScheduler batchScheduler;
+
+
     public LlamaProcessor(Configuration configuration, Tokenizer tokenizer, Weights weights)
+    {
+        this(configuration, tokenizer, weights, GGUFType.F32);
+    }
+
+
+    public LlamaProcessor(Configuration configuration, Tokenizer tokenizer, Weights weights, GGUFType kvCacheType)
+    {
+        this(configuration, tokenizer, weights, kvCacheType, DEFAULT_STATE_POOL_SIZE, 0, 0, DEFAULT_MAXIMUM_BATCH_SIZE);
+    }
+
+
+    /**
+     * @param statePoolSize            maximum number of idle states kept for reuse, see {@link StatePool}
+     * @param stateIdleTimeoutMillis   idle states older than this are dropped, 0 keeps them
+     * @param prefixCacheBytes         memory the key/value cache blocks of prompt prefixes may hold, see {@link PrefixCache}, 0 disables it
+     * @param maximumBatchSize         maximum number of sequences decoded together by {@link #submit}, see {@link BatchScheduler}
+     */
+    public LlamaProcessor(Configuration configuration, Tokenizer tokenizer, Weights weights, GGUFType kvCacheType, int statePoolSize, long stateIdleTimeoutMillis,
+                    long prefixCacheBytes, int maximumBatchSize)
     {
         super(configuration, tokenizer, weights);
+        this.kvBlockPool = new KVBlockPool(configuration, kvCacheType);
+        this.statePool = new StatePool(this::createNewState, statePoolSize, stateIdleTimeoutMillis);
+        this.prefixCache = new PrefixCache(kvBlockPool, prefixCacheBytes);
+        this.maximumBatchSize = maximumBatchSize;
     }
 
 
     @Override
     public State createNewState()
     {
-        State state = new State(configuration);
-        state.latestToken = tokenizer.getSpecialTokens().get("<|begin_of_text|>");
+        State state = new State(configuration, State.PREFILL_BATCH_SIZE, kvBlockPool);
+        state.latestToken = beginOfText();
+        return state;
+    }
+
+
+    /**
+     * A state for a new sequence, reused from an earlier request when one is idle. Give it back with
+     * {@link #releaseState(State)} once the request is done.
+     */
+    public State acquireState()
+    {
+        State state = statePool.acquire();
+        state.latestToken = beginOfText();
         return state;
     }
 
 
+    public void releaseState(State state)
+    {
+        statePool.release(state);
+    }
+
+
+    /**
+     * {@link #generateTokens Generates} the answer to {@code promptTokens} in a state holding no position yet, e.g.
+     * from {@link #acquireState()}. Ingestion starts after the longest prefix of the sequence whose key/value cache
+     * blocks were cached by an earlier request, and the blocks of the sequence are cached for the requests that follow.
+     */
+    public Response generateTokens(State state, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, IntConsumer onTokenGenerated)
+    {
+        List<Integer> tokens = sequence(state, promptTokens);
+        int startPosition = prefixCache.attach(state, tokens);
+        state.latestToken = tokens.get(startPosition);
+        Response response = generateTokens(this, state, startPosition, promptTokens.subList(startPosition, promptTokens.size()), stopTokens, maxTokens, sampler, onTokenGenerated);
+        prefixCache.insert(state, tokens.subList(0, Math.min(tokens.size(), ingestedLength(maxTokens))));
+        return response;
+    }
+
+
+    /**
+     * {@link #generateTokens(State, List, Set, int, Sampler, IntConsumer) Generates} the answer to {@code promptTokens}
+     * together with the other requests submitted concurrently, see {@link BatchScheduler}. The state must not be used
+     * until the returned future completes, the callback is called from the thread of the scheduler.
+     */
+    public CompletableFuture<Response> submit(State state, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler,
+                    IntConsumer onTokenGenerated)
+    {
+        List<Integer> tokens = sequence(state, promptTokens);
+        int startPosition = prefixCache.attach(state, tokens);
+        state.latestToken = tokens.get(startPosition);
+        return batchScheduler().submit(state, startPosition, promptTokens.subList(startPosition, promptTokens.size()), stopTokens, maxTokens, sampler, onTokenGenerated)
+                        .thenApply(response -> {
+                            prefixCache.insert(state, tokens.subList(0, Math.min(tokens.size(), ingestedLength(maxTokens))));
+                            return response;
+                        });
+    }
+
+
+    // the tokens fed to the model, from position 0
+    private static List<Integer> sequence(State state, List<Integer> promptTokens)
+    {
+        List<Integer> tokens = new ArrayList<>(promptTokens.size() + 1);
+        tokens.add(state.latestToken);
+        tokens.addAll(promptTokens);
+        return tokens;
+    }
+
+
+    // the number of positions generation may reach
+    private int ingestedLength(int maxTokens)
+    {
+        return maxTokens < 0 || configuration.contextLength < maxTokens ? configuration.contextLength : maxTokens;
+    }
+
+
+    private synchronized BatchScheduler batchScheduler()
+    {
+        if(batchScheduler == null || batchScheduler.isClosed())
+        {
+            // a scheduler stopped by an error does not take requests anymore
+            batchScheduler = new BatchScheduler(this, maximumBatchSize);
+        }
+        return batchScheduler;
+    }
+
+
+    private int beginOfText()
+    {
+        return tokenizer.getSpecialTokens().get("<|begin_of_text|>");
+    }
+
+
     public Configuration getConfiguration()
     {
         return configuration;
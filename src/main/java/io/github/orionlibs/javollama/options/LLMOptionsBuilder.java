@@ -12,6 +12,20 @@ public final class LLMOptionsBuilder
         options.add(new LLMProp("maximumTokensToProduce", ConfigurationService.getIntegerProp("orion-llm4j.maximum.tokens.to.produce")));
         options.add(new LLMProp("interactiveChat", ConfigurationService.getBooleanProp("orion-llm4j.interactive.chat")));
         options.add(new LLMProp("llmModelPath", ConfigurationService.getProp("orion-llm4j.llm.model.path")));
+        options.add(new LLMProp("stackQKVWeights", ConfigurationService.getBooleanProp("javollama.stack.qkv.weights")));
+        options.add(new LLMProp("repackWeights", ConfigurationService.getBooleanProp("javollama.repack.weights")));
+        options.add(new LLMProp("dequantizeAttentionWeights", ConfigurationService.getProp("javollama.dequantize.attention.weights")));
+        options.add(new LLMProp("dequantizeFeedForwardWeights", ConfigurationService.getProp("javollama.dequantize.feed.forward.weights")));
+        options.add(new LLMProp("dequantizeClassifierWeights", ConfigurationService.getProp("javollama.dequantize.classifier.weights")));
+        options.add(new LLMProp("kvCacheType", ConfigurationService.getProp("javollama.kv.cache.type")));
+        options.add(new LLMProp("statePoolSize", ConfigurationService.getIntegerProp("javollama.state.pool.size")));
+        options.add(new LLMProp("stateIdleTimeoutSeconds", ConfigurationService.getIntegerProp("javollama.state.pool.idle.timeout.seconds")));
+        options.add(new LLMProp("prefixCacheSizeMB", ConfigurationService.getIntegerProp("javollama.prefix.cache.size.mb")));
+        options.add(new LLMProp("maximumBatchSize", ConfigurationService.getIntegerProp("javollama.batch.size.maximum")));
+        options.add(new LLMProp("maximumChatSessions", ConfigurationService.getIntegerProp("javollama.chat.session.maximum")));
+        options.add(new LLMProp("chatSessionIdleTimeoutSeconds", ConfigurationService.getIntegerProp("javollama.chat.session.idle.timeout.seconds")));
+        options.add(new LLMProp("chatSessionSnapshotDirectory", ConfigurationService.getProp("javollama.chat.session.snapshot.directory")));
+        options.add(new LLMProp("inferenceThreads", ConfigurationService.getIntegerProp("javollama.inference.threads")));
         return options;
     }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package io.github.orionlibs.javollama;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.javollama.core.Message;
+import io.github.orionlibs.javollama.core.Response;
+import io.github.orionlibs.javollama.core.Role;
+import io.github.orionlibs.javollama.core.State;
+import io.github.orionlibs.javollama.core.TestModels;
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import io.github.orionlibs.javollama.llama.LlamaChatFormat;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChatSessionTest
+{
+    private final LlamaProcessor model = TestModels.model(GGUFType.F32, 0, 4);
+    private final LlamaChatFormat chatFormat = new LlamaChatFormat(model.getTokenizer());
+    private final LLM llm = new LLM(model, 2, null);
+    @TempDir
+    Path snapshotDirectory;
+
+
+    @Test
+    void answersAreTheSameAsForTheWholeConversation()
+    {
+        String[] messages = {"hello there", "tell me more about x", "and y?", "ok bye"};
+        ChatSession session = new ChatSession(llm, model, answersOf(6), TestModels.CONTEXT_LENGTH, null, "be terse");
+        List<Integer> conversation = new ArrayList<>(chatFormat.encodeDialogPrompt(false, List.of(new Message(Role.SYSTEM, "be terse"))));
+        for(String message : messages)
+        {
+            Response response = session.chat(message);
+            conversation.addAll(chatFormat.encodeMessage(new Message(Role.USER, message)));
+            conversation.addAll(chatFormat.encodeHeader(new Message(Role.ASSISTANT, "")));
+            State state = model.acquireState();
+            List<Integer> expected = model.generateTokens(state, conversation.subList(1, conversation.size()), chatFormat.getStopTokens(), -1, answersOf(6), null)
+                            .getResponseTokens();
+            model.releaseState(state);
+            conversation.addAll(expected);
+            assertEquals(expected.subList(0, expected.size() - 1), response.getResponseTokens(), message);
+            assertEquals(conversation.size(), session.size());
+        }
+        session.close();
+    }
+
+
+    @Test
+    void evictedSessionsResumeFromTheirSnapshots()
+    {
+        LLM evictingLLM = new LLM(model, 1, snapshotDirectory);
+        String[] messages = {"hello there", "tell me more about x", "and y?"};
+        ChatSession[] sessions = new ChatSession[3];
+        ChatSession[] references = new ChatSession[3];
+        for(int i = 0; i < sessions.length; i++)
+        {
+            sessions[i] = new ChatSession(evictingLLM, model, answersOf(6), TestModels.CONTEXT_LENGTH, snapshotDirectory, "session " + i);
+            references[i] = new ChatSession(llm, model, answersOf(6), TestModels.CONTEXT_LENGTH, null, "session " + i);
+        }
+        for(String message : messages)
+        {
+            for(int i = 0; i < sessions.length; i++)
+            {
+                assertEquals(references[i].chat(message).getResponseTokens(), sessions[i].chat(message).getResponseTokens(), message + " of session " + i);
+            }
+        }
+        for(int i = 0; i < sessions.length; i++)
+        {
+            sessions[i].close();
+            references[i].close();
+        }
+    }
+
+
+    @Test
+    void everyTurnGeneratesUpToMaxTokens()
+    {
+        ChatSession session = new ChatSession(llm, model, answersOf(Integer.MAX_VALUE), 5, null, null);
+        for(String message : new String[] {"first", "second", "third"})
+        {
+            assertEquals(5, session.chat(message).getResponseTokens().size(), message);
+        }
+        session.close();
+    }
+
+
+    @Test
+    void answersCutAtMaxTokensAreEndedByEndOfTurn()
+    {
+        ChatSession session = new ChatSession(llm, model, Sampler.ARGMAX, 5, null, null);
+        List<Integer> conversation = new ArrayList<>(List.of(chatFormat.getBeginOfText()));
+        for(String message : new String[] {"first", "second", "third"})
+        {
+            Response response = session.chat(message);
+            conversation.addAll(chatFormat.encodeMessage(new Message(Role.USER, message)));
+            conversation.addAll(chatFormat.encodeHeader(new Message(Role.ASSISTANT, "")));
+            State state = model.acquireState();
+            List<Integer> expected = model.generateTokens(state, conversation.subList(1, conversation.size()), chatFormat.getStopTokens(), conversation.size() - 1 + 5,
+                            Sampler.ARGMAX, null).getResponseTokens();
+            model.releaseState(state);
+            conversation.addAll(expected);
+            if(chatFormat.getStopTokens().contains(expected.getLast()))
+            {
+                expected = expected.subList(0, expected.size() - 1);
+            }
+            else
+            {
+                conversation.add(chatFormat.getEndOfTurn());
+            }
+            assertEquals(expected, response.getResponseTokens(), message);
+            assertEquals(conversation.size(), session.size(), message);
+        }
+        session.close();
+    }
+
+
+    @Test
+    void noRoomForAnAnswerGivesEmptyAnswers()
+    {
+        ChatSession session = new ChatSession(llm, model, answersOf(6), 0, null, null);
+        for(String message : new String[] {"first", "second"})
+        {
+            int size = session.size();
+            Response response = session.chat(message);
+            assertEquals(List.of(), response.getResponseTokens(), message);
+            // the message, the header of the answer and its end of turn
+            int turnSize = chatFormat.encodeMessage(new Message(Role.USER, message)).size() + chatFormat.encodeHeader(new Message(Role.ASSISTANT, "")).size() + 1;
+            assertEquals(size + turnSize, session.size(), message);
+        }
+        session.close();
+    }
+
+
+    @Test
+    void messageNotFittingTheContextIsRejected()
+    {
+        ChatSession session = new ChatSession(llm, model, answersOf(6), TestModels.CONTEXT_LENGTH, null, null);
+        session.chat("hello");
+        int size = session.size();
+        assertThrows(IllegalStateException.class, () -> session.chat("x".repeat(TestModels.CONTEXT_LENGTH)));
+        assertEquals(size, session.size());
+        // the conversation goes on
+        assertEquals(6, session.chat("short").getResponseTokens().size());
+        session.close();
+    }
+
+
+    // greedy sampling, with the answer ended by end of turn after the given number of tokens
+    private static Sampler answersOf(int numberOfTokens)
+    {
+        int[] count = {0};
+        return logits -> {
+            if(++count[0] > numberOfTokens)
+            {
+                count[0] = 0;
+                return TestModels.END_OF_TURN;
+            }
+            return Sampler.ARGMAX.sampleToken(logits);
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The tiled attention, with its online softmax over the heads of a group, and the attention split over chunks of the
+ * positions, against a plain softmax per query head.
+ */
+public class AttentionTest
+{
+    // 4 query heads sharing 2 key/value heads, long enough a context for several tiles and for the split of the positions
+    private final Configuration config = new Configuration(128, 256, 1, 4, 2, 16, 3 * State.SPLIT_KV_THRESHOLD / 2, false, 1e-5f, 10000f);
+    private final Random random = new Random(31);
+
+
+    @Test
+    void tiledAttentionMatchesPlainSoftmax()
+    {
+        State state = filledState();
+        int tile = State.ATTENTION_TILE_SIZE;
+        // a single position, within the first tile, its last position, then partial and whole later tiles
+        for(int position : new int[] {0, tile / 3, tile - 1, tile, 2 * tile + 17, 3 * tile - 1})
+        {
+            randomize(state.q, config.dim);
+            LLMProcessor.attention(config, state, 0, position);
+            assertMatchesPlainSoftmax(state, position, "position " + position);
+        }
+        state.release();
+    }
+
+
+    @Test
+    void splitAttentionMatchesPlainSoftmax()
+    {
+        State state = filledState();
+        int position = config.contextLength - 1;
+        // from chunks of several tiles down to chunks shorter than a tile, grown on demand
+        for(int splits : new int[] {2, 3, 16, 5})
+        {
+            randomize(state.q, config.dim);
+            LLMProcessor.attention(config, state, 0, position, splits);
+            assertMatchesPlainSoftmax(state, position, splits + " splits");
+        }
+        assertEquals(16, state.splitOut.length);
+        state.release();
+    }
+
+
+    @Test
+    void splitBuffersAreAllocatedOnTheFirstSplit()
+    {
+        State state = filledState();
+        LLMProcessor.attention(config, state, 0, config.contextLength - 1, 1);
+        assertEquals(0, state.splitOut.length);
+        state.release();
+    }
+
+
+    private State filledState()
+    {
+        State state = new State(config, 1);
+        state.reserve(config.contextLength);
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        for(int position = 0; position < config.contextLength; position++)
+        {
+            for(int i = 0; i < kvDim; i++)
+            {
+                state.keyCache(0, position).setFloat(state.cacheOffset(position) + i, (float)random.nextGaussian());
+                state.valueCache(0, position).setFloat(state.cacheOffset(position) + i, (float)random.nextGaussian());
+            }
+        }
+        return state;
+    }
+
+
+    private void randomize(FloatTensor tensor, int size)
+    {
+        for(int i = 0; i < size; i++)
+        {
+            tensor.setFloat(i, (float)random.nextGaussian());
+        }
+    }
+
+
+    /**
+     * Compares {@code state.xb} with the softmax of the scores of every query head against the keys of its group, in
+     * double precision, applied to the values.
+     */
+    private void assertMatchesPlainSoftmax(State state, int position, String message)
+    {
+        int headSize = config.headSize;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads;
+        for(int h = 0; h < config.numberOfHeads; h++)
+        {
+            int kvHeadOffset = (h / kvMul) * headSize;
+            double[] scores = new double[position + 1];
+            double maxScore = Double.NEGATIVE_INFINITY;
+            for(int t = 0; t <= position; t++)
+            {
+                double score = 0;
+                for(int i = 0; i < headSize; i++)
+                {
+                    score += (double)state.q.getFloat(h * headSize + i) * state.keyCache(0, t).getFloat(state.cacheOffset(t) + kvHeadOffset + i);
+                }
+                scores[t] = score / Math.sqrt(headSize);
+                maxScore = Math.max(maxScore, scores[t]);
+            }
+            double sum = 0;
+            for(int t = 0; t <= position; t++)
+            {
+                scores[t] = Math.exp(scores[t] - maxScore);
+                sum += scores[t];
+            }
+            for(int i = 0; i < headSize; i++)
+            {
+                double expected = 0;
+                for(int t = 0; t <= position; t++)
+                {
+                    expected += scores[t] / sum * state.valueCache(0, t).getFloat(state.cacheOffset(t) + kvHeadOffset + i);
+                }
+                assertEquals(expected, state.xb.getFloat(h * headSize + i), 1e-5, message + ", head " + h + ", value " + i);
+            }
+        }
+    }
+}
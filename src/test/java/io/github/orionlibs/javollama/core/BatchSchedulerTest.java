@@ -0,0 +1,107 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+public class BatchSchedulerTest
+{
+    private static final Set<Integer> STOP_TOKENS = Set.of(TestModels.END_OF_TURN);
+    private final LlamaProcessor model = TestModels.model(GGUFType.F32, 0, 4);
+
+
+    @Test
+    void batchedRequestsGenerateTheSameTokensAsSequentialOnes() throws Exception
+    {
+        Random random = new Random(3);
+        List<List<Integer>> prompts = new ArrayList<>();
+        for(int i = 0; i < 6; i++)
+        {
+            prompts.add(TestModels.prompt(1 + random.nextInt(80), random));
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for(List<Integer> prompt : prompts)
+        {
+            expected.add(generate(prompt, prompt.size() + 20));
+        }
+        List<State> states = new ArrayList<>();
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for(List<Integer> prompt : prompts)
+        {
+            State state = model.acquireState();
+            states.add(state);
+            futures.add(model.submit(state, prompt, STOP_TOKENS, prompt.size() + 20, Sampler.ARGMAX, null));
+        }
+        for(int i = 0; i < prompts.size(); i++)
+        {
+            assertEquals(expected.get(i), futures.get(i).get().getResponseTokens(), "request " + i);
+            model.releaseState(states.get(i));
+        }
+    }
+
+
+    @Test
+    void promptFillingTheContextEndsTheRequest() throws Exception
+    {
+        Random random = new Random(5);
+        for(int length : new int[] {TestModels.CONTEXT_LENGTH - 1, TestModels.CONTEXT_LENGTH, TestModels.CONTEXT_LENGTH + 10})
+        {
+            List<Integer> prompt = TestModels.prompt(length, random);
+            State state = model.acquireState();
+            Response response = model.submit(state, prompt, STOP_TOKENS, -1, Sampler.ARGMAX, null).get();
+            model.releaseState(state);
+            assertEquals(generate(prompt, -1), response.getResponseTokens(), "prompt of " + length + " tokens");
+        }
+        // the scheduler keeps serving requests
+        List<Integer> prompt = TestModels.prompt(10, random);
+        State state = model.acquireState();
+        assertEquals(generate(prompt, 20), model.submit(state, prompt, STOP_TOKENS, 20, Sampler.ARGMAX, null).get().getResponseTokens());
+        model.releaseState(state);
+    }
+
+
+    @Test
+    void failingCallbackOnlyFailsItsOwnRequest() throws Exception
+    {
+        Random random = new Random(7);
+        List<Integer> failingPrompt = TestModels.prompt(12, random);
+        List<Integer> prompt = TestModels.prompt(30, random);
+        List<Integer> expected = generate(prompt, 60);
+        State failingState = model.acquireState();
+        State state = model.acquireState();
+        CompletableFuture<Response> failing = model.submit(failingState, failingPrompt, STOP_TOKENS, 60, Sampler.ARGMAX, token -> {
+            throw new IllegalStateException("callback failure");
+        });
+        CompletableFuture<Response> succeeding = model.submit(state, prompt, STOP_TOKENS, 60, Sampler.ARGMAX, null);
+        ExecutionException exception = assertThrows(ExecutionException.class, failing::get);
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+        assertEquals(expected, succeeding.get().getResponseTokens());
+        model.releaseState(failingState);
+        model.releaseState(state);
+    }
+
+
+    private List<Integer> generate(List<Integer> prompt, int maxTokens)
+    {
+        State state = model.acquireState();
+        try
+        {
+            return model.generateTokens(state, prompt, STOP_TOKENS, maxTokens, Sampler.ARGMAX, null).getResponseTokens();
+        }
+        finally
+        {
+            model.releaseState(state);
+        }
+    }
+}
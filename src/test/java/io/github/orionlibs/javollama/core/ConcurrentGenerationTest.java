@@ -0,0 +1,94 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.sampler.Sampler;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests generated from several threads at once on one model, sharing its weights and its prefix cache.
+ */
+public class ConcurrentGenerationTest
+{
+    private static final Set<Integer> STOP_TOKENS = Set.of(TestModels.END_OF_TURN);
+    private static final int THREADS = 4;
+    private static final int REQUESTS_PER_THREAD = 3;
+
+
+    @Test
+    void concurrentRequestsGenerateTheSameTokensAsSequentialOnes() throws Exception
+    {
+        Random random = new Random(47);
+        // a prefix of two whole cache blocks shared by every prompt, so the threads attach and insert the same blocks
+        List<Integer> prefix = TestModels.prompt(2 * KVBlockPool.BLOCK_SIZE, random);
+        List<List<Integer>> prompts = new ArrayList<>();
+        for(int i = 0; i < THREADS * REQUESTS_PER_THREAD; i++)
+        {
+            List<Integer> prompt = new ArrayList<>(prefix);
+            prompt.addAll(TestModels.prompt(1 + random.nextInt(40), random));
+            prompts.add(prompt);
+        }
+        LlamaProcessor sequential = TestModels.model(GGUFType.F32, 0, 1);
+        List<List<Integer>> expected = new ArrayList<>();
+        for(List<Integer> prompt : prompts)
+        {
+            expected.add(generate(sequential, prompt));
+        }
+        LlamaProcessor model = TestModels.model(GGUFType.F32, 64L << 20, 1);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<CompletableFuture<List<List<Integer>>>> threads = new ArrayList<>();
+        for(int t = 0; t < THREADS; t++)
+        {
+            int first = t * REQUESTS_PER_THREAD;
+            CompletableFuture<List<List<Integer>>> thread = new CompletableFuture<>();
+            threads.add(thread);
+            Thread.ofPlatform().name("request-" + t).start(() -> {
+                try
+                {
+                    start.await();
+                    List<List<Integer>> generated = new ArrayList<>();
+                    for(int i = first; i < first + REQUESTS_PER_THREAD; i++)
+                    {
+                        generated.add(generate(model, prompts.get(i)));
+                    }
+                    thread.complete(generated);
+                }
+                catch(Throwable e)
+                {
+                    thread.completeExceptionally(e);
+                }
+            });
+        }
+        for(int t = 0; t < THREADS; t++)
+        {
+            List<List<Integer>> generated = threads.get(t).get();
+            for(int i = 0; i < REQUESTS_PER_THREAD; i++)
+            {
+                int request = t * REQUESTS_PER_THREAD + i;
+                assertEquals(expected.get(request), generated.get(i), "thread " + t + ", request " + request);
+            }
+        }
+    }
+
+
+    private static List<Integer> generate(LlamaProcessor model, List<Integer> prompt)
+    {
+        State state = model.acquireState();
+        try
+        {
+            return model.generateTokens(state, prompt, STOP_TOKENS, prompt.size() + 16, Sampler.ARGMAX, null).getResponseTokens();
+        }
+        finally
+        {
+            model.releaseState(state);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.ArrayFloatTensor;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import java.lang.foreign.Arena;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class KVBlockPoolTest
+{
+    private final Configuration config = TestModels.configuration();
+    private final int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+    private final Random random = new Random(13);
+
+
+    @Test
+    void quantizedCachesAttendCloseToF32()
+    {
+        int positions = KVBlockPool.BLOCK_SIZE + 21;
+        State expected = new State(config, 1, GGUFType.F32);
+        State f16 = new State(config, 1, GGUFType.F16);
+        State q8_0 = new State(config, 1, GGUFType.Q8_0);
+        for(int position = 0; position < positions; position++)
+        {
+            FloatTensor key = randomVector(kvDim);
+            FloatTensor value = randomVector(kvDim);
+            for(State state : new State[] {expected, f16, q8_0})
+            {
+                state.reserve(position + 1);
+                key.copyTo(0, state.keyCache(0, position), state.cacheOffset(position), kvDim);
+                value.copyTo(0, state.valueCache(0, position), state.cacheOffset(position), kvDim);
+            }
+        }
+        FloatTensor q = randomVector(config.dim);
+        for(State state : new State[] {expected, f16, q8_0})
+        {
+            q.copyTo(0, state.q, 0, config.dim);
+            LLMProcessor.attention(config, state, 0, positions - 1);
+        }
+        // F16 keeps 11 significant bits, Q8_0 rounds each value by up to half a step of 1/127 of the largest of its block
+        assertClose(expected.xb, f16.xb, 1e-3f, GGUFType.F16);
+        assertClose(expected.xb, q8_0.xb, 1e-2f, GGUFType.Q8_0);
+        expected.release();
+        f16.release();
+        q8_0.release();
+    }
+
+
+    @Test
+    void q8_0CacheNeedsHeadsStartingABlock()
+    {
+        // head size 48, a key/value dimension of 96 but heads straddling the 32 values of a Q8_0 block
+        Configuration unaligned = new Configuration(192, 256, 1, 4, 2, 16, 64, false, 1e-5f, 10000f);
+        assertThrows(IllegalArgumentException.class, () -> new KVBlockPool(unaligned, GGUFType.Q8_0));
+        new KVBlockPool(unaligned, GGUFType.F16);
+    }
+
+
+    @Test
+    void sharedBlockIsFreeOnceItsLastReferenceIsDropped()
+    {
+        KVBlockPool pool = new KVBlockPool(config, GGUFType.F32);
+        State owner = new State(config, 1, pool);
+        owner.reserve(2 * KVBlockPool.BLOCK_SIZE);
+        State sharing = new State(config, 1, pool);
+        sharing.attach(List.of(owner.block(0)));
+        owner.release();
+        // the second block had a single reference
+        assertEquals(1, pool.freeBlocks());
+        KVBlockPool.Block shared = sharing.block(0);
+        sharing.release();
+        assertEquals(2, pool.freeBlocks());
+        // the most recently freed block is reused first
+        assertSame(shared, pool.acquire());
+        assertEquals(2, pool.allocatedBlocks());
+    }
+
+
+    @Test
+    void mappedBlockIsNeverFree()
+    {
+        KVBlockPool pool = new KVBlockPool(config, GGUFType.F32);
+        long segmentBytes = pool.blockBytes() / 2;
+        KVBlockPool.Block mapped = pool.map(Arena.ofAuto().allocate(segmentBytes), Arena.ofAuto().allocate(segmentBytes));
+        pool.retain(mapped);
+        pool.release(mapped);
+        pool.release(mapped);
+        assertEquals(0, pool.freeBlocks());
+        assertEquals(0, pool.allocatedBlocks());
+    }
+
+
+    @Test
+    void releasedBlocksPastOneContextAreDropped()
+    {
+        KVBlockPool pool = new KVBlockPool(config, GGUFType.F32);
+        int contextBlocks = config.contextLength / KVBlockPool.BLOCK_SIZE;
+        KVBlockPool.Block[] blocks = new KVBlockPool.Block[3 * contextBlocks];
+        for(int i = 0; i < blocks.length; i++)
+        {
+            blocks[i] = pool.acquire();
+        }
+        for(KVBlockPool.Block block : blocks)
+        {
+            pool.release(block);
+        }
+        assertEquals(contextBlocks, pool.freeBlocks());
+        assertEquals(contextBlocks, pool.allocatedBlocks());
+        // the kept blocks are reused first, the others allocated again
+        for(int i = 0; i < blocks.length; i++)
+        {
+            pool.acquire();
+        }
+        assertEquals(0, pool.freeBlocks());
+        assertEquals(blocks.length, pool.allocatedBlocks());
+    }
+
+
+    private FloatTensor randomVector(int size)
+    {
+        FloatTensor vector = ArrayFloatTensor.allocate(size);
+        for(int i = 0; i < size; i++)
+        {
+            vector.setFloat(i, (float)random.nextGaussian());
+        }
+        return vector;
+    }
+
+
+    private static void assertClose(FloatTensor expected, FloatTensor actual, float tolerance, GGUFType type)
+    {
+        for(int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.getFloat(i), actual.getFloat(i), tolerance, type + " value " + i);
+        }
+    }
+}
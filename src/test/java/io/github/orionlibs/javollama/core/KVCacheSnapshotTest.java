@@ -0,0 +1,77 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class KVCacheSnapshotTest
+{
+    @TempDir
+    Path directory;
+
+
+    @Test
+    void restoredCacheGivesTheSameLogits() throws Exception
+    {
+        for(GGUFType type : new GGUFType[] {GGUFType.F32, GGUFType.F16, GGUFType.Q8_0})
+        {
+            LlamaProcessor model = TestModels.model(type, 0, 1);
+            Random random = new Random(11);
+            // a full block mapped from the file and a partial one copied into the pool
+            List<Integer> tokens = TestModels.prompt(KVBlockPool.BLOCK_SIZE + 37, random);
+            State original = model.createNewState();
+            for(int position = 0; position < tokens.size(); position++)
+            {
+                LLMProcessor.forward(model, original, tokens.get(position), position);
+            }
+            original.latestToken = tokens.getLast();
+            Path file = directory.resolve(type + ".kv");
+            KVCacheSnapshot.save(original, tokens.size(), file);
+            State restored = model.createNewState();
+            assertEquals(tokens.size(), KVCacheSnapshot.restore(restored, file));
+            assertEquals(original.latestToken, restored.latestToken);
+            for(int position = tokens.size(); position < tokens.size() + 10; position++)
+            {
+                int token = random.nextInt(256);
+                float[] expected = toArray(LLMProcessor.forward(model, original, token, position));
+                float[] actual = toArray(LLMProcessor.forward(model, restored, token, position));
+                assertArrayEquals(expected, actual, 0f);
+            }
+            original.release();
+            restored.release();
+        }
+    }
+
+
+    @Test
+    void snapshotOfAnotherCacheTypeIsRejected() throws Exception
+    {
+        LlamaProcessor model = TestModels.model(GGUFType.F16, 0, 1);
+        State state = model.createNewState();
+        LLMProcessor.forward(model, state, 1, 0);
+        Path file = directory.resolve("f16.kv");
+        KVCacheSnapshot.save(state, 1, file);
+        State other = TestModels.model(GGUFType.F32, 0, 1).createNewState();
+        assertThrows(IllegalArgumentException.class, () -> KVCacheSnapshot.restore(other, file));
+    }
+
+
+    private static float[] toArray(FloatTensor tensor)
+    {
+        float[] values = new float[tensor.size()];
+        for(int i = 0; i < values.length; i++)
+        {
+            values[i] = tensor.getFloat(i);
+        }
+        return values;
+    }
+}
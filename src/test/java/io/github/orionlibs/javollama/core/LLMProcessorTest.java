@@ -0,0 +1,69 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class LLMProcessorTest
+{
+    private final LlamaProcessor model = TestModels.model(GGUFType.F32, 0, 1);
+    private final Configuration config = TestModels.configuration();
+
+
+    @Test
+    void batchedPrefillMatchesTokenByTokenForward()
+    {
+        State batched = model.createNewState();
+        // more than a batch, not a multiple of it, and crossing a block of the key/value cache
+        int length = KVBlockPool.BLOCK_SIZE + batched.batchSize / 2 + 3;
+        List<Integer> prompt = TestModels.prompt(length, new Random(19));
+        float[] logits = new float[config.vocabularySize];
+        model.generateTokens(model, batched, 0, prompt, Set.of(TestModels.END_OF_TURN), -1, promptLogits -> {
+            for(int i = 0; i < logits.length; i++)
+            {
+                logits[i] = promptLogits.getFloat(i);
+            }
+            return TestModels.END_OF_TURN;
+        }, null);
+        State sequential = model.createNewState();
+        FloatTensor expectedLogits = null;
+        int token = sequential.latestToken;
+        for(int position = 0; position <= length; position++)
+        {
+            expectedLogits = LLMProcessor.forward(model, sequential, token, position);
+            token = position < length ? prompt.get(position) : -1;
+        }
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        for(int layer = 0; layer < config.numberOfLayers; layer++)
+        {
+            for(int position = 0; position <= length; position++)
+            {
+                for(int i = 0; i < kvDim; i++)
+                {
+                    int offset = sequential.cacheOffset(position) + i;
+                    String where = "layer " + layer + ", position " + position + ", value " + i;
+                    assertClose(sequential.keyCache(layer, position).getFloat(offset), batched.keyCache(layer, position).getFloat(offset), "key of " + where);
+                    assertClose(sequential.valueCache(layer, position).getFloat(offset), batched.valueCache(layer, position).getFloat(offset), "value of " + where);
+                }
+            }
+        }
+        for(int i = 0; i < logits.length; i++)
+        {
+            assertClose(expectedLogits.getFloat(i), logits[i], "logit " + i);
+        }
+        batched.release();
+        sequential.release();
+    }
+
+
+    private static void assertClose(float expected, float actual, String message)
+    {
+        assertEquals(expected, actual, 1e-5f * Math.max(1f, Math.abs(expected)), message);
+    }
+}
@@ -0,0 +1,113 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.ArrayFloatTensor;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.GGUFTensorEntry;
+import io.github.orionlibs.javollama.core.tensor.InterleavedFloatTensor;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class ModelLoaderTest
+{
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+
+    @Test
+    void bf16IsDequantizedToF32EvenWhenF16IsAskedFor()
+    {
+        // values past the F16 range, and below its smallest subnormal
+        float[] values = {1f, -3.5f, 1e5f, -3e38f, 1e-30f};
+        MemorySegment segment = Arena.ofAuto().allocate(2L * values.length, 64);
+        for(int i = 0; i < values.length; i++)
+        {
+            segment.setAtIndex(SHORT_LE, i, (short)(Float.floatToRawIntBits(values[i]) >>> 16));
+        }
+        GGUFTensorEntry entry = new GGUFTensorEntry(segment, "weight", GGUFType.BF16, new int[] {values.length}, segment);
+        FloatTensor original = ModelLoader.loadQuantized(entry);
+        GGUFTensorEntry dequantized = ModelLoader.dequantize(entry, GGUFType.F16);
+        assertEquals(GGUFType.F32, dequantized.ggmlType());
+        FloatTensor tensor = ModelLoader.loadQuantized(dequantized);
+        for(int i = 0; i < values.length; i++)
+        {
+            assertEquals(original.getFloat(i), tensor.getFloat(i), "value " + i);
+        }
+    }
+
+
+    @Test
+    void stackedQKVMatchesSeparateMatmuls()
+    {
+        Random random = new Random(43);
+        int columns = 64;
+        // q, k and v of different heights, as with grouped-query attention
+        int[] rows = {16, 8, 12};
+        GGUFTensorEntry[] entries = new GGUFTensorEntry[rows.length];
+        FloatTensor[] separate = new FloatTensor[rows.length];
+        for(int w = 0; w < rows.length; w++)
+        {
+            MemorySegment segment = TestModels.q8_0Segment(rows[w] * columns, random);
+            entries[w] = new GGUFTensorEntry(segment, "weight " + w, GGUFType.Q8_0, new int[] {columns, rows[w]}, segment);
+            separate[w] = ModelLoader.loadQuantized(entries[w]);
+        }
+        GGUFTensorEntry qkv = ModelLoader.stack("qkv", entries);
+        assertEquals(rows[0] + rows[1] + rows[2], qkv.shape()[1]);
+        FloatTensor input = ArrayFloatTensor.allocate(columns);
+        input.mapInPlace(unused -> (float)random.nextGaussian());
+        FloatTensor[] expected = allocate(rows);
+        for(int w = 0; w < rows.length; w++)
+        {
+            separate[w].matmul(input, expected[w], rows[w], columns);
+        }
+        // the mapped layout, split into slices of the stacked copy
+        FloatTensor stacked = ModelLoader.loadWeight(qkv, false);
+        FloatTensor[] slices = new FloatTensor[rows.length];
+        int rowStart = 0;
+        for(int w = 0; w < rows.length; w++)
+        {
+            slices[w] = ModelLoader.loadQuantized(ModelLoader.slice(qkv, "slice " + w, rowStart, rows[w]));
+            rowStart += rows[w];
+        }
+        assertMatmulsMatch(expected, stacked, slices, input, rows, columns, "mapped");
+        // the interleaved layout, split into row views as the model loader does
+        InterleavedFloatTensor repacked = (InterleavedFloatTensor)ModelLoader.loadWeight(qkv, true);
+        FloatTensor[] views = {repacked.rows(0, rows[0]), repacked.rows(rows[0], rows[1]), repacked.rows(rows[0] + rows[1], rows[2])};
+        assertMatmulsMatch(expected, repacked, views, input, rows, columns, "interleaved");
+    }
+
+
+    private static void assertMatmulsMatch(FloatTensor[] expected, FloatTensor stacked, FloatTensor[] parts, FloatTensor input, int[] rows, int columns, String layout)
+    {
+        FloatTensor[] fused = allocate(rows);
+        stacked.matmul(input, fused, rows, columns);
+        for(int w = 0; w < rows.length; w++)
+        {
+            FloatTensor out = ArrayFloatTensor.allocate(rows[w]);
+            parts[w].matmul(input, out, rows[w], columns);
+            for(int row = 0; row < rows[w]; row++)
+            {
+                float value = expected[w].getFloat(row);
+                float tolerance = 1e-5f * Math.max(1, Math.abs(value));
+                assertEquals(value, fused[w].getFloat(row), tolerance, layout + " fused, weight " + w + " row " + row);
+                assertEquals(value, out.getFloat(row), tolerance, layout + " part, weight " + w + " row " + row);
+            }
+        }
+    }
+
+
+    private static FloatTensor[] allocate(int[] sizes)
+    {
+        FloatTensor[] tensors = new FloatTensor[sizes.length];
+        for(int i = 0; i < sizes.length; i++)
+        {
+            tensors[i] = ArrayFloatTensor.allocate(sizes[i]);
+        }
+        return tensors;
+    }
+}
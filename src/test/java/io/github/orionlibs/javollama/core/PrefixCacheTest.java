@@ -0,0 +1,67 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class PrefixCacheTest
+{
+    private final Configuration config = TestModels.configuration();
+    private final KVBlockPool kvBlockPool = new KVBlockPool(config, GGUFType.F32);
+    // room for two blocks
+    private final PrefixCache prefixCache = new PrefixCache(kvBlockPool, 2 * kvBlockPool.blockBytes());
+    private final Random random = new Random(37);
+
+
+    @Test
+    void cachedBlocksOutliveTheStateThatComputedThem()
+    {
+        List<Integer> tokens = TestModels.prompt(3 * KVBlockPool.BLOCK_SIZE + 5, random);
+        State state = new State(config, 1, kvBlockPool);
+        state.reserve(tokens.size());
+        prefixCache.insert(state, tokens);
+        // the last of the 3 full blocks is over the budget
+        assertEquals(2, prefixCache.size());
+        KVBlockPool.Block first = state.block(0);
+        KVBlockPool.Block second = state.block(1);
+        state.release();
+        // only the partial block and the evicted one are free, the cache holds the first two
+        assertEquals(2, kvBlockPool.freeBlocks());
+        State other = new State(config, 1, kvBlockPool);
+        assertEquals(2 * KVBlockPool.BLOCK_SIZE, prefixCache.attach(other, tokens));
+        assertSame(first, other.block(0));
+        assertSame(second, other.block(1));
+        other.release();
+        assertEquals(2, kvBlockPool.freeBlocks());
+    }
+
+
+    @Test
+    void evictedBlocksStayAliveWhileAttached()
+    {
+        List<Integer> tokens = TestModels.prompt(2 * KVBlockPool.BLOCK_SIZE + 1, random);
+        State state = new State(config, 1, kvBlockPool);
+        state.reserve(tokens.size());
+        prefixCache.insert(state, tokens);
+        state.release();
+        State attached = new State(config, 1, kvBlockPool);
+        prefixCache.attach(attached, tokens);
+        assertEquals(1, kvBlockPool.freeBlocks());
+        // another prompt takes the whole budget, the blocks of the first one are evicted but still attached
+        List<Integer> otherTokens = TestModels.prompt(2 * KVBlockPool.BLOCK_SIZE, random);
+        State other = new State(config, 1, kvBlockPool);
+        other.reserve(otherTokens.size());
+        prefixCache.insert(other, otherTokens);
+        assertEquals(2, prefixCache.size());
+        assertEquals(0, kvBlockPool.freeBlocks());
+        attached.release();
+        assertEquals(2, kvBlockPool.freeBlocks());
+        other.release();
+        assertEquals(2, kvBlockPool.freeBlocks());
+        assertEquals(0, prefixCache.attach(attached, tokens));
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.tensor.ArrayFloatTensor;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import org.junit.jupiter.api.Test;
+
+public class RotaryPositionEmbeddingsTest
+{
+    private static final int HEAD_SIZE = 16;
+    private static final double THETA = 10000;
+
+
+    @Test
+    void interleavedSequencesRotateByTheAnglesOfTheirPositions()
+    {
+        // more blocks than are cached, visited by sequences at positions far apart
+        int contextLength = (RotaryPositionEmbeddings.CACHED_BLOCKS + 2) * RotaryPositionEmbeddings.BLOCK_SIZE;
+        RotaryPositionEmbeddings rope = new RotaryPositionEmbeddings(contextLength, HEAD_SIZE, THETA, false, 8, 1, 3, 8192, 1);
+        int sequences = RotaryPositionEmbeddings.CACHED_BLOCKS + 1;
+        for(int step = 0; step < 3; step++)
+        {
+            for(int sequence = 0; sequence < sequences; sequence++)
+            {
+                int position = sequence * RotaryPositionEmbeddings.BLOCK_SIZE + step * 101 % RotaryPositionEmbeddings.BLOCK_SIZE;
+                FloatTensor vector = ArrayFloatTensor.allocate(2 * HEAD_SIZE);
+                for(int i = 0; i < vector.size(); i++)
+                {
+                    vector.setFloat(i, i + 1);
+                }
+                rope.rotate(vector, 2, position);
+                for(int i = 0; i < vector.size(); i += 2)
+                {
+                    // the angle in float, as in the tables, its rounding grows with the position
+                    float angle = position * (float)(1.0 / Math.pow(THETA, (i % HEAD_SIZE) / (double)HEAD_SIZE));
+                    double v0 = i + 1;
+                    double v1 = i + 2;
+                    assertEquals(v0 * Math.cos(angle) - v1 * Math.sin(angle), vector.getFloat(i), 1e-4, "position " + position + ", value " + i);
+                    assertEquals(v1 * Math.cos(angle) + v0 * Math.sin(angle), vector.getFloat(i + 1), 1e-4, "position " + position + ", value " + (i + 1));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    void cacheKeepsTwoBlocksPerSequenceInFlight()
+    {
+        int contextLength = 4 * RotaryPositionEmbeddings.BLOCK_SIZE;
+        assertEquals(RotaryPositionEmbeddings.CACHED_BLOCKS, new RotaryPositionEmbeddings(contextLength, HEAD_SIZE, THETA, false, 8, 1, 3, 8192, 1).cachedBlocks());
+        int maximumBatchSize = RotaryPositionEmbeddings.CACHED_BLOCKS + 3;
+        assertEquals(2 * maximumBatchSize,
+                        new RotaryPositionEmbeddings(contextLength, HEAD_SIZE, THETA, false, 8, 1, 3, 8192, maximumBatchSize).cachedBlocks());
+    }
+}
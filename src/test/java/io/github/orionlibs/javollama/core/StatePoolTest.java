@@ -0,0 +1,57 @@
+package io.github.orionlibs.javollama.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import org.junit.jupiter.api.Test;
+
+public class StatePoolTest
+{
+    private final Configuration config = TestModels.configuration();
+    private final KVBlockPool kvBlockPool = new KVBlockPool(config, GGUFType.F32);
+
+
+    @Test
+    void releasedStateGivesItsBlocksBackAndIsReused()
+    {
+        StatePool pool = new StatePool(() -> new State(config, 1, kvBlockPool), 1, 0);
+        State state = pool.acquire();
+        state.reserve(2 * KVBlockPool.BLOCK_SIZE);
+        pool.release(state);
+        assertEquals(2, kvBlockPool.freeBlocks());
+        assertEquals(1, pool.idleStates());
+        State reused = pool.acquire();
+        assertSame(state, reused);
+        assertEquals(0, reused.blockCount());
+        assertEquals(0, pool.idleStates());
+    }
+
+
+    @Test
+    void fullPoolEvictsTheStateIdleTheLongest()
+    {
+        StatePool pool = new StatePool(() -> new State(config, 1, kvBlockPool), 1, 0);
+        State first = pool.acquire();
+        State second = pool.acquire();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.idleStates());
+        assertSame(second, pool.acquire());
+        assertNotSame(first, pool.acquire());
+    }
+
+
+    @Test
+    void disabledPoolKeepsNoState()
+    {
+        StatePool pool = new StatePool(() -> new State(config, 1, kvBlockPool), 0, 0);
+        State state = pool.acquire();
+        state.reserve(1);
+        pool.release(state);
+        assertEquals(0, pool.idleStates());
+        assertEquals(1, kvBlockPool.freeBlocks());
+    }
+}
@@ -0,0 +1,193 @@
+package io.github.orionlibs.javollama.core;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import io.github.orionlibs.javollama.core.tensor.F32FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q4_0FloatTensor;
+import io.github.orionlibs.javollama.core.tensor.Q8_0FloatTensor;
+import io.github.orionlibs.javollama.llama.LlamaProcessor;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Small models with random weights, to compare the optimized code paths with plain implementations without a model file.
+ */
+public final class TestModels
+{
+    public static final int DIM = 256;
+    public static final int HIDDEN_DIM = 512;
+    public static final int NUMBER_OF_LAYERS = 2;
+    public static final int NUMBER_OF_HEADS = 4;
+    public static final int NUMBER_OF_KEY_VALUE_HEADS = 2;
+    public static final int VOCABULARY_SIZE = 300;
+    public static final int CONTEXT_LENGTH = 256;
+    // tokens 256 to 260 are the special tokens of the Llama 3 chat format
+    public static final int END_OF_TURN = 259;
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+
+    private TestModels()
+    {
+    }
+
+
+    public static Configuration configuration()
+    {
+        return new Configuration(DIM, HIDDEN_DIM, NUMBER_OF_LAYERS, NUMBER_OF_HEADS, NUMBER_OF_KEY_VALUE_HEADS, VOCABULARY_SIZE, CONTEXT_LENGTH, false, 1e-5f, 10000f);
+    }
+
+
+    /**
+     * Q8_0 weights drawn from {@code random}, with the rotary position embeddings of up to {@code maximumBatchSize}
+     * sequences in flight.
+     */
+    public static Weights weights(Configuration configuration, Random random, int maximumBatchSize)
+    {
+        int kvDim = configuration.dim * configuration.numberOfKeyValueHeads / configuration.numberOfHeads;
+        RotaryPositionEmbeddings rope = new RotaryPositionEmbeddings(configuration.contextLength, configuration.headSize, configuration.ropeTheta, false, 8, 1, 3, 8192,
+                        maximumBatchSize);
+        return new Weights(q8_0(configuration.vocabularySize * DIM, random),
+                        f32Layers(DIM, random),
+                        q8_0Layers(DIM * DIM, random),
+                        q8_0Layers(kvDim * DIM, random),
+                        q8_0Layers(kvDim * DIM, random),
+                        null,
+                        q8_0Layers(DIM * DIM, random),
+                        f32Layers(DIM, random),
+                        q8_0Layers(HIDDEN_DIM * DIM, random),
+                        q8_0Layers(DIM * HIDDEN_DIM, random),
+                        q8_0Layers(HIDDEN_DIM * DIM, random),
+                        f32(DIM, random),
+                        rope,
+                        q8_0(configuration.vocabularySize * DIM, random));
+    }
+
+
+    public static LlamaProcessor model(GGUFType kvCacheType, long prefixCacheBytes, int maximumBatchSize)
+    {
+        Configuration configuration = configuration();
+        return new LlamaProcessor(configuration, tokenizer(), weights(configuration, new Random(42), maximumBatchSize), kvCacheType, 4, 0, prefixCacheBytes, maximumBatchSize);
+    }
+
+
+    /**
+     * A byte level tokenizer without merges, with the special tokens of the Llama 3 chat format.
+     */
+    public static Tokenizer tokenizer()
+    {
+        String[] tokens = new String[VOCABULARY_SIZE];
+        for(int b = 0; b < 256; b++)
+        {
+            tokens[b] = new String(Character.toChars(Tokenizer.BYTE_ENCODER.get(b)));
+        }
+        String[] specialTokens = {"<|begin_of_text|>", "<|start_header_id|>", "<|end_header_id|>", "<|eot_id|>", "<|end_of_text|>"};
+        Map<String, Integer> specialTokenIds = new HashMap<>();
+        for(int i = 0; i < specialTokens.length; i++)
+        {
+            tokens[256 + i] = specialTokens[i];
+            specialTokenIds.put(specialTokens[i], 256 + i);
+        }
+        for(int i = 256 + specialTokens.length; i < VOCABULARY_SIZE; i++)
+        {
+            tokens[i] = "<unused" + i + ">";
+        }
+        return new Tokenizer(new Vocabulary(tokens, null), List.of(), "\\S+|\\s+", specialTokenIds);
+    }
+
+
+    /**
+     * Random byte tokens.
+     */
+    public static List<Integer> prompt(int length, Random random)
+    {
+        List<Integer> prompt = new ArrayList<>(length);
+        for(int i = 0; i < length; i++)
+        {
+            prompt.add(random.nextInt(256));
+        }
+        return prompt;
+    }
+
+
+    public static FloatTensor f32(int size, Random random)
+    {
+        MemorySegment segment = Arena.ofAuto().allocate(4L * size, 64);
+        for(int i = 0; i < size; i++)
+        {
+            segment.setAtIndex(FLOAT_LE, i, 0.8f + random.nextFloat() * 0.4f);
+        }
+        return new F32FloatTensor(size, segment);
+    }
+
+
+    public static MemorySegment q8_0Segment(int size, Random random)
+    {
+        MemorySegment segment = Arena.ofAuto().allocate((long)size / 32 * 34, 64);
+        for(int block = 0; block < size / 32; block++)
+        {
+            segment.set(SHORT_LE, block * 34L, Float.floatToFloat16(0.002f + random.nextFloat() * 0.002f));
+            for(int i = 0; i < 32; i++)
+            {
+                segment.set(ValueLayout.JAVA_BYTE, block * 34L + 2 + i, (byte)(random.nextInt(256) - 128));
+            }
+        }
+        return segment;
+    }
+
+
+    public static MemorySegment q4_0Segment(int size, Random random)
+    {
+        MemorySegment segment = Arena.ofAuto().allocate((long)size / 32 * 18, 64);
+        for(int block = 0; block < size / 32; block++)
+        {
+            segment.set(SHORT_LE, block * 18L, Float.floatToFloat16(0.02f + random.nextFloat() * 0.02f));
+            for(int i = 0; i < 16; i++)
+            {
+                segment.set(ValueLayout.JAVA_BYTE, block * 18L + 2 + i, (byte)random.nextInt(256));
+            }
+        }
+        return segment;
+    }
+
+
+    public static FloatTensor q8_0(int size, Random random)
+    {
+        return new Q8_0FloatTensor(size, q8_0Segment(size, random));
+    }
+
+
+    public static FloatTensor q4_0(int size, Random random)
+    {
+        return new Q4_0FloatTensor(size, q4_0Segment(size, random));
+    }
+
+
+    private static FloatTensor[] q8_0Layers(int size, Random random)
+    {
+        FloatTensor[] layers = new FloatTensor[NUMBER_OF_LAYERS];
+        for(int l = 0; l < NUMBER_OF_LAYERS; l++)
+        {
+            layers[l] = q8_0(size, random);
+        }
+        return layers;
+    }
+
+
+    private static FloatTensor[] f32Layers(int size, Random random)
+    {
+        FloatTensor[] layers = new FloatTensor[NUMBER_OF_LAYERS];
+        for(int l = 0; l < NUMBER_OF_LAYERS; l++)
+        {
+            layers[l] = f32(size, random);
+        }
+        return layers;
+    }
+}
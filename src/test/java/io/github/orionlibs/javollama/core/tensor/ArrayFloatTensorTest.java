@@ -0,0 +1,215 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.util.Random;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The vector overrides of {@link ArrayFloatTensor} against the scalar defaults of {@link FloatTensor}, at offsets and
+ * lengths that leave a tail after the last whole vector.
+ */
+public class ArrayFloatTensorTest
+{
+    // three whole vectors and an even tail, so the pairs of the RoPE step stay whole
+    private static final int SIZE = 3 * FloatTensor.F_SPECIES.length() + 6;
+    private static final int OFFSET = 5;
+    private static final int LENGTH = OFFSET + SIZE + 3;
+    private final Random random = new Random(41);
+
+
+    @Test
+    void reductionsMatchTheScalarDefaults()
+    {
+        float[] values = randomValues(LENGTH);
+        FloatTensor array = new ArrayFloatTensor(values.clone());
+        FloatTensor scalar = new ScalarFloatTensor(values.clone());
+        assertClose(scalar.sum(OFFSET, SIZE), array.sum(OFFSET, SIZE), "sum");
+        assertEquals(scalar.max(OFFSET, SIZE), array.max(OFFSET, SIZE), "max");
+        FloatTensor other = new ArrayFloatTensor(randomValues(LENGTH));
+        assertClose(FloatTensor.scalarDot(array, OFFSET, other, 1, SIZE), array.dot(OFFSET, other, 1, SIZE), "dot");
+    }
+
+
+    @Test
+    void elementwiseOperationsMatchTheScalarDefaults()
+    {
+        float[] values = randomValues(LENGTH);
+        FloatTensor array = new ArrayFloatTensor(values.clone());
+        FloatTensor scalar = new ScalarFloatTensor(values.clone());
+        array.scaleInPlace(OFFSET, SIZE, 1.7f);
+        scalar.scaleInPlace(OFFSET, SIZE, 1.7f);
+        assertAllClose(scalar, array, "scaleInPlace");
+        array.divideInPlace(OFFSET, SIZE, 3.1f);
+        scalar.divideInPlace(OFFSET, SIZE, 3.1f);
+        assertAllClose(scalar, array, "divideInPlace");
+        float shift = scalar.max(OFFSET, SIZE);
+        assertClose(scalar.expInPlace(OFFSET, SIZE, shift), array.expInPlace(OFFSET, SIZE, shift), "expInPlace sum");
+        assertAllClose(scalar, array, "expInPlace");
+        float[] rescaled = randomValues(LENGTH);
+        array = new ArrayFloatTensor(rescaled.clone());
+        scalar = new ScalarFloatTensor(rescaled.clone());
+        array.softmaxInPlace(OFFSET, SIZE);
+        scalar.softmaxInPlace(OFFSET, SIZE);
+        assertAllClose(scalar, array, "softmaxInPlace");
+    }
+
+
+    @Test
+    void ropeMatchesTheScalarDefault()
+    {
+        float[] values = randomValues(LENGTH);
+        float[] cos = new float[SIZE + 8];
+        float[] sin = new float[SIZE + 8];
+        for(int i = 0; i < cos.length; i += 2)
+        {
+            double angle = random.nextDouble(2 * Math.PI);
+            cos[i] = cos[i + 1] = (float)Math.cos(angle);
+            sin[i] = -(float)Math.sin(angle);
+            sin[i + 1] = (float)Math.sin(angle);
+        }
+        FloatTensor array = new ArrayFloatTensor(values.clone());
+        FloatTensor scalar = new ScalarFloatTensor(values.clone());
+        // a table offset other than the tensor offset, as for the heads of a position
+        array.ropeInPlace(OFFSET, SIZE, cos, sin, 3);
+        scalar.ropeInPlace(OFFSET, SIZE, cos, sin, 3);
+        assertAllClose(scalar, array, "ropeInPlace");
+    }
+
+
+    @Test
+    void operationsWithSegmentOperandsMatchTheScalarDefaults()
+    {
+        float[] values = randomValues(LENGTH);
+        FloatTensor segment = segment(randomValues(LENGTH));
+        FloatTensor array = new ArrayFloatTensor(values.clone());
+        FloatTensor scalar = new ScalarFloatTensor(values.clone());
+        array.saxpyInPlace(OFFSET, segment, 2, SIZE, 0.6f);
+        scalar.saxpyInPlace(OFFSET, segment, 2, SIZE, 0.6f);
+        assertAllClose(scalar, array, "saxpyInPlace of a segment");
+        FloatTensor other = new ArrayFloatTensor(randomValues(LENGTH));
+        array.saxpyInPlace(OFFSET, other, 1, SIZE, -1.3f);
+        scalar.saxpyInPlace(OFFSET, other, 1, SIZE, -1.3f);
+        assertAllClose(scalar, array, "saxpyInPlace of an array");
+        // the norm weights are read from the mapped file
+        FloatTensor x = new ArrayFloatTensor(randomValues(SIZE));
+        array.normalizeInPlace(x, segment, SIZE, 0.8f);
+        scalar.normalizeInPlace(x, segment, SIZE, 0.8f);
+        assertAllClose(scalar, array, "normalizeInPlace");
+    }
+
+
+    @Test
+    void copiesBetweenArraysAndSegmentsKeepEveryValue()
+    {
+        float[] values = randomValues(LENGTH);
+        FloatTensor array = new ArrayFloatTensor(values);
+        FloatTensor segment = segment(new float[LENGTH]);
+        array.copyTo(OFFSET, segment, 2, SIZE);
+        FloatTensor copy = ArrayFloatTensor.allocate(LENGTH);
+        segment.copyTo(2, copy, 1, SIZE);
+        for(int i = 0; i < SIZE; i++)
+        {
+            assertEquals(values[OFFSET + i], segment.getFloat(2 + i), "to the segment, value " + i);
+            assertEquals(values[OFFSET + i], copy.getFloat(1 + i), "from the segment, value " + i);
+        }
+        // and nothing outside the copied range
+        assertEquals(0f, segment.getFloat(1));
+        assertEquals(0f, segment.getFloat(2 + SIZE));
+        assertEquals(0f, copy.getFloat(0));
+        assertEquals(0f, copy.getFloat(1 + SIZE));
+    }
+
+
+    private float[] randomValues(int size)
+    {
+        float[] values = new float[size];
+        for(int i = 0; i < size; i++)
+        {
+            values[i] = (float)random.nextGaussian();
+        }
+        return values;
+    }
+
+
+    private static FloatTensor segment(float[] values)
+    {
+        SegmentFloatTensor segment = SegmentFloatTensor.allocate(values.length);
+        for(int i = 0; i < values.length; i++)
+        {
+            segment.setFloat(i, values[i]);
+        }
+        return segment;
+    }
+
+
+    /**
+     * The vector path reorders sums and fuses multiply-adds, the scalar one rounds every step.
+     */
+    private static void assertClose(double expected, double actual, String message)
+    {
+        assertEquals(expected, actual, 1e-5 * Math.max(1, Math.abs(expected)), message);
+    }
+
+
+    private static void assertAllClose(FloatTensor expected, FloatTensor actual, String message)
+    {
+        for(int i = 0; i < LENGTH; i++)
+        {
+            assertClose(expected.getFloat(i), actual.getFloat(i), message + ", value " + i);
+        }
+    }
+
+
+    /**
+     * A float array that only implements the abstract methods, so every operation runs the scalar default.
+     */
+    private static final class ScalarFloatTensor extends FloatTensor
+    {
+        private final float[] values;
+
+
+        ScalarFloatTensor(float[] values)
+        {
+            this.values = values;
+        }
+
+
+        @Override
+        public int size()
+        {
+            return values.length;
+        }
+
+
+        @Override
+        public float getFloat(int index)
+        {
+            return values[index];
+        }
+
+
+        @Override
+        public void setFloat(int index, float value)
+        {
+            values[index] = value;
+        }
+
+
+        @Override
+        FloatVector getFloatVector(VectorSpecies<Float> species, int offset)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+
+        @Override
+        GGUFType type()
+        {
+            return GGUFType.F32;
+        }
+    }
+}
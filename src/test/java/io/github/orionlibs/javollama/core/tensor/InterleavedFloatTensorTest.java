@@ -0,0 +1,166 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import io.github.orionlibs.javollama.core.TestModels;
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+import jdk.incubator.vector.FloatVector;
+import org.junit.jupiter.api.Test;
+
+public class InterleavedFloatTensorTest
+{
+    private static final int ROWS = 32;
+    private static final int COLUMNS = 256;
+    private final Random random = new Random(29);
+
+
+    @Test
+    void repackedTensorsMatchTheMappedOnes()
+    {
+        for(GGUFType type : new GGUFType[] {GGUFType.Q8_0, GGUFType.Q4_0})
+        {
+            MemorySegment blocks = type == GGUFType.Q8_0 ? TestModels.q8_0Segment(ROWS * COLUMNS, random) : TestModels.q4_0Segment(ROWS * COLUMNS, random);
+            FloatTensor mapped = type == GGUFType.Q8_0 ? new Q8_0FloatTensor(ROWS * COLUMNS, blocks) : new Q4_0FloatTensor(ROWS * COLUMNS, blocks);
+            InterleavedFloatTensor repacked = InterleavedFloatTensor.repack(new GGUFTensorEntry(blocks, "weight", type, new int[] {COLUMNS, ROWS}, blocks));
+            for(int i = 0; i < ROWS * COLUMNS; i++)
+            {
+                assertEquals(mapped.getFloat(i), repacked.getFloat(i), type + " value " + i);
+            }
+            FloatTensor input = randomInput();
+            FloatTensor expected = ArrayFloatTensor.allocate(ROWS);
+            FloatTensor actual = ArrayFloatTensor.allocate(ROWS);
+            mapped.matmul(input, expected, ROWS, COLUMNS);
+            repacked.matmul(input, actual, ROWS, COLUMNS);
+            assertClose(expected, 0, actual, type + " matmul");
+            // a view of the last group of rows, as split from a stacked QKV tensor
+            InterleavedFloatTensor view = repacked.rows(ROWS - InterleavedFloatTensor.ROWS, InterleavedFloatTensor.ROWS);
+            FloatTensor viewOut = ArrayFloatTensor.allocate(InterleavedFloatTensor.ROWS);
+            view.matmul(input, viewOut, InterleavedFloatTensor.ROWS, COLUMNS);
+            assertClose(expected, ROWS - InterleavedFloatTensor.ROWS, viewOut, type + " view matmul");
+            for(int row = 0; row < ROWS; row++)
+            {
+                assertEquals(expected.getFloat(row), repacked.dot(row * COLUMNS, input, 0, COLUMNS), 1e-4f * Math.abs(expected.getFloat(row)) + 1e-5f, type + " dot " + row);
+            }
+        }
+    }
+
+
+    @Test
+    void fusedBatchedAndSwigluMatmulsMatchTheMappedOnes()
+    {
+        for(GGUFType type : new GGUFType[] {GGUFType.Q8_0, GGUFType.Q4_0})
+        {
+            FloatTensor[] mapped = new FloatTensor[2];
+            FloatTensor[] repacked = new FloatTensor[2];
+            for(int w = 0; w < 2; w++)
+            {
+                MemorySegment blocks = type == GGUFType.Q8_0 ? TestModels.q8_0Segment(ROWS * COLUMNS, random) : TestModels.q4_0Segment(ROWS * COLUMNS, random);
+                mapped[w] = type == GGUFType.Q8_0 ? new Q8_0FloatTensor(ROWS * COLUMNS, blocks) : new Q4_0FloatTensor(ROWS * COLUMNS, blocks);
+                repacked[w] = InterleavedFloatTensor.repack(new GGUFTensorEntry(blocks, "weight", type, new int[] {COLUMNS, ROWS}, blocks));
+            }
+            FloatTensor[] inputs = {randomInput(), randomInput(), randomInput()};
+            // stacked rows split into whole groups, then into rows that are not
+            for(int[] dim0 : new int[][] {{8, 12, 12}, {6, 10, 16}})
+            {
+                FloatTensor[] expected = allocate(dim0);
+                FloatTensor[] actual = allocate(dim0);
+                mapped[0].matmul(inputs[0], expected, dim0, COLUMNS);
+                repacked[0].matmul(inputs[0], actual, dim0, COLUMNS);
+                assertAllClose(expected, actual, type + " stacked matmul " + dim0[0]);
+            }
+            int[] dim0 = {ROWS, ROWS};
+            FloatTensor[] expected = allocate(dim0);
+            FloatTensor[] actual = allocate(dim0);
+            FloatTensor.matmul(inputs[0], mapped, expected, dim0, COLUMNS);
+            FloatTensor.matmul(inputs[0], repacked, actual, dim0, COLUMNS);
+            assertAllClose(expected, actual, type + " fused matmul");
+            // a repacked tensor fused with a mapped one
+            FloatTensor.matmul(inputs[0], new FloatTensor[] {repacked[0], mapped[1]}, actual, dim0, COLUMNS);
+            assertAllClose(expected, actual, type + " mixed fused matmul");
+            int[] batch = {ROWS, ROWS, ROWS};
+            expected = allocate(batch);
+            actual = allocate(batch);
+            mapped[0].matmul(inputs.length, inputs, expected, ROWS, COLUMNS);
+            repacked[0].matmul(inputs.length, inputs, actual, ROWS, COLUMNS);
+            assertAllClose(expected, actual, type + " batched matmul");
+            FloatTensor.swiglu(mapped[0], mapped[1], inputs.length, inputs, expected, ROWS, COLUMNS);
+            FloatTensor.swiglu(repacked[0], repacked[1], inputs.length, inputs, actual, ROWS, COLUMNS);
+            assertAllClose(expected, actual, type + " batched swiglu");
+            FloatTensor.swiglu(mapped[0], mapped[1], inputs[1], expected[0], ROWS, COLUMNS);
+            FloatTensor.swiglu(repacked[0], repacked[1], inputs[1], actual[0], ROWS, COLUMNS);
+            assertClose(expected[0], 0, actual[0], type + " swiglu");
+        }
+    }
+
+
+    @Test
+    void vectorsMatchGetFloat()
+    {
+        assumeTrue(FloatTensor.USE_VECTOR_API);
+        for(GGUFType type : new GGUFType[] {GGUFType.Q8_0, GGUFType.Q4_0})
+        {
+            InterleavedFloatTensor tensor = repacked(type);
+            int length = FloatTensor.F_SPECIES.length();
+            // aligned reads from the layout, then unaligned ones
+            for(int index : new int[] {0, length, 16, COLUMNS - length, 3 * COLUMNS + 32 + length, 5, COLUMNS - 3})
+            {
+                FloatVector vector = tensor.getFloatVector(FloatTensor.F_SPECIES, index);
+                for(int lane = 0; lane < length; lane++)
+                {
+                    assertEquals(tensor.getFloat(index + lane), vector.lane(lane), type + " vector at " + index);
+                }
+            }
+        }
+    }
+
+
+    private InterleavedFloatTensor repacked(GGUFType type)
+    {
+        MemorySegment blocks = type == GGUFType.Q8_0 ? TestModels.q8_0Segment(ROWS * COLUMNS, random) : TestModels.q4_0Segment(ROWS * COLUMNS, random);
+        return InterleavedFloatTensor.repack(new GGUFTensorEntry(blocks, "weight", type, new int[] {COLUMNS, ROWS}, blocks));
+    }
+
+
+    private FloatTensor randomInput()
+    {
+        FloatTensor input = ArrayFloatTensor.allocate(COLUMNS);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            input.setFloat(i, (float)random.nextGaussian());
+        }
+        return input;
+    }
+
+
+    private static FloatTensor[] allocate(int[] sizes)
+    {
+        FloatTensor[] tensors = new FloatTensor[sizes.length];
+        for(int i = 0; i < sizes.length; i++)
+        {
+            tensors[i] = ArrayFloatTensor.allocate(sizes[i]);
+        }
+        return tensors;
+    }
+
+
+    private static void assertAllClose(FloatTensor[] expected, FloatTensor[] actual, String message)
+    {
+        for(int i = 0; i < expected.length; i++)
+        {
+            assertClose(expected[i], 0, actual[i], message + ", output " + i);
+        }
+    }
+
+
+    private static void assertClose(FloatTensor expected, int expectedOffset, FloatTensor actual, String message)
+    {
+        for(int i = 0; i < actual.size(); i++)
+        {
+            float value = expected.getFloat(expectedOffset + i);
+            assertEquals(value, actual.getFloat(i), 1e-4f * Math.abs(value) + 1e-5f, message + " row " + i);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.TestModels;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class Q8ActivationTensorTest
+{
+    private static final int ROWS = 64;
+    private static final int COLUMNS = 256;
+    private final Random random = new Random(23);
+
+
+    @Test
+    void quantizationKeepsEveryValueWithinHalfAStep()
+    {
+        FloatTensor input = randomInput();
+        Q8ActivationTensor quantized = Q8ActivationTensor.quantize(input, COLUMNS);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            float step = quantized.scales[i / Q8ActivationTensor.BLOCK_SIZE];
+            assertEquals(input.getFloat(i), quantized.getFloat(i), step / 2 + 1e-7f, "value " + i);
+        }
+    }
+
+
+    @Test
+    void integerMatmulMatchesFloatMatmul()
+    {
+        FloatTensor[] weights = {TestModels.q8_0(ROWS * COLUMNS, random), TestModels.q4_0(ROWS * COLUMNS, random)};
+        for(FloatTensor weight : weights)
+        {
+            FloatTensor input = randomInput();
+            Q8ActivationTensor quantized = Q8ActivationTensor.quantize(input, COLUMNS);
+            for(int row = 0; row < ROWS; row++)
+            {
+                double exact = 0;
+                double ofQuantized = 0;
+                double magnitude = 0;
+                for(int j = 0; j < COLUMNS; j++)
+                {
+                    double w = weight.getFloat(row * COLUMNS + j);
+                    exact += w * input.getFloat(j);
+                    ofQuantized += w * quantized.getFloat(j);
+                    magnitude += Math.abs(w * input.getFloat(j));
+                }
+                float dot = weight.dot(row * COLUMNS, quantized, 0, COLUMNS);
+                // the integer kernel computes the dot of the quantized input exactly, up to float rounding
+                assertEquals(ofQuantized, dot, 1e-5 * magnitude, weight.type() + " row " + row);
+                // which differs from the float matmul by the quantization error of the input only
+                assertEquals(exact, dot, 1e-2 * magnitude, weight.type() + " row " + row);
+            }
+        }
+    }
+
+
+    @Test
+    void arrayTensorsReadQuantizedActivationsValueByValue()
+    {
+        FloatTensor input = randomInput();
+        Q8ActivationTensor quantized = Q8ActivationTensor.quantize(input, COLUMNS);
+        // Q8_0 typed, but without vectors of its own
+        FloatTensor sum = ArrayFloatTensor.allocate(COLUMNS);
+        sum.saxpyInPlace(0, quantized, 0, COLUMNS, 2f);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            assertEquals(2f * quantized.getFloat(i), sum.getFloat(i), "value " + i);
+        }
+    }
+
+
+    private FloatTensor randomInput()
+    {
+        FloatTensor input = ArrayFloatTensor.allocate(COLUMNS);
+        for(int i = 0; i < COLUMNS; i++)
+        {
+            input.setFloat(i, (float)random.nextGaussian());
+        }
+        return input;
+    }
+}
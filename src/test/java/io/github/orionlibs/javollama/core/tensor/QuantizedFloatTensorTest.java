@@ -0,0 +1,152 @@
+package io.github.orionlibs.javollama.core.tensor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.orionlibs.javollama.core.gguf.GGUFType;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Random;
+import jdk.incubator.vector.FloatVector;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The vectorized kernels of every tensor type against its scalar {@link FloatTensor#getFloat(int)}.
+ */
+public class QuantizedFloatTensorTest
+{
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final int SIZE = 4 * GGUFType.QK_K;
+    private final Random random = new Random(17);
+
+
+    @Test
+    void kQuantDotsMatchGetFloat()
+    {
+        assertDotMatchesGetFloat(new Q4_KFloatTensor(SIZE, randomBlocks(GGUFType.Q4_K, SIZE, 0, 2)));
+        assertDotMatchesGetFloat(new Q5_KFloatTensor(SIZE, randomBlocks(GGUFType.Q5_K, SIZE, 0, 2)));
+        assertDotMatchesGetFloat(new Q6_KFloatTensor(SIZE, randomBlocks(GGUFType.Q6_K, SIZE, Q6_KFloatTensor.D_OFFSET)));
+    }
+
+
+    @Test
+    void legacyQuantDotsMatchGetFloat()
+    {
+        assertDotMatchesGetFloat(new Q4_1FloatTensor(SIZE, randomBlocks(GGUFType.Q4_1, SIZE, 0, 2)));
+        assertDotMatchesGetFloat(new Q5_0FloatTensor(SIZE, randomBlocks(GGUFType.Q5_0, SIZE, 0)));
+        assertDotMatchesGetFloat(new Q5_1FloatTensor(SIZE, randomBlocks(GGUFType.Q5_1, SIZE, 0, 2)));
+    }
+
+
+    @Test
+    void floatDotsAndVectorsMatchGetFloat()
+    {
+        float[] values = new float[SIZE];
+        for(int i = 0; i < SIZE; i++)
+        {
+            values[i] = random.nextFloat() * 2 - 1;
+        }
+        for(FloatTensor tensor : floatTensors(values))
+        {
+            assertDotMatchesGetFloat(tensor);
+            assertVectorsMatchGetFloat(tensor);
+        }
+        // the widenings keep signed zeros, subnormal halves and infinities
+        values[1] = -0f;
+        values[2] = 0x1p-20f;
+        values[3] = -0x1p-24f;
+        values[4] = Float.POSITIVE_INFINITY;
+        values[5] = Float.NEGATIVE_INFINITY;
+        for(FloatTensor tensor : floatTensors(values))
+        {
+            assertVectorsMatchGetFloat(tensor);
+        }
+    }
+
+
+    private static FloatTensor[] floatTensors(float[] values)
+    {
+        MemorySegment f32 = Arena.ofAuto().allocate(4L * values.length, 64);
+        MemorySegment f16 = Arena.ofAuto().allocate(2L * values.length, 64);
+        MemorySegment bf16 = Arena.ofAuto().allocate(2L * values.length, 64);
+        for(int i = 0; i < values.length; i++)
+        {
+            f32.setAtIndex(FLOAT_LE, i, values[i]);
+            f16.setAtIndex(SHORT_LE, i, Float.floatToFloat16(values[i]));
+            bf16.setAtIndex(SHORT_LE, i, (short)(Float.floatToRawIntBits(values[i]) >>> 16));
+        }
+        return new FloatTensor[] {new F32FloatTensor(values.length, f32), new F16FloatTensor(values.length, f16), new BF16FloatTensor(values.length, bf16)};
+    }
+
+
+    private static void assertVectorsMatchGetFloat(FloatTensor tensor)
+    {
+        if(!FloatTensor.USE_VECTOR_API)
+        {
+            // getFloatVector is only called by the vector kernels
+            return;
+        }
+        int length = FloatTensor.F_SPECIES.length();
+        for(int index = 0; index + length <= tensor.size(); index += length)
+        {
+            FloatVector vector = tensor.getFloatVector(FloatTensor.F_SPECIES, index);
+            for(int lane = 0; lane < length; lane++)
+            {
+                assertEquals(tensor.getFloat(index + lane), vector.lane(lane), tensor.type() + " vector at " + (index + lane));
+            }
+        }
+    }
+
+
+    private void assertDotMatchesGetFloat(FloatTensor tensor)
+    {
+        int blockSize = tensor.type().getBlockSize();
+        FloatTensor that = ArrayFloatTensor.allocate(SIZE + 3);
+        for(int i = 0; i < that.size(); i++)
+        {
+            that.setFloat(i, random.nextFloat() * 2 - 1);
+        }
+        // whole tensor, then a range starting past the first block against an unaligned range of the other tensor
+        int[][] ranges = {{0, 0, SIZE}, {blockSize, 3, SIZE - 2 * blockSize}};
+        for(int[] range : ranges)
+        {
+            int thisOffset = range[0];
+            int thatOffset = range[1];
+            int size = range[2];
+            double expected = 0;
+            double magnitude = 0;
+            for(int i = 0; i < size; i++)
+            {
+                double product = (double)tensor.getFloat(thisOffset + i) * that.getFloat(thatOffset + i);
+                expected += product;
+                magnitude += Math.abs(product);
+            }
+            assertEquals(expected, tensor.dot(thisOffset, that, thatOffset, size), 1e-5 * magnitude, tensor.type() + " dot at " + thisOffset);
+        }
+    }
+
+
+    /**
+     * Random blocks of {@code type}, with small positive half-precision scales at the given offsets of each block.
+     */
+    private MemorySegment randomBlocks(GGUFType type, int size, int... scaleOffsets)
+    {
+        long blockBytes = type.getTypeSize();
+        int blocks = size / type.getBlockSize();
+        MemorySegment segment = Arena.ofAuto().allocate(blocks * blockBytes, 64);
+        for(long i = 0; i < segment.byteSize(); i++)
+        {
+            segment.set(ValueLayout.JAVA_BYTE, i, (byte)random.nextInt(256));
+        }
+        for(int block = 0; block < blocks; block++)
+        {
+            for(int scaleOffset : scaleOffsets)
+            {
+                segment.set(SHORT_LE, block * blockBytes + scaleOffset, Float.floatToFloat16(0.01f + random.nextFloat() * 0.01f));
+            }
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,208 @@
+package io.github.orionlibs.javollama.core.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class WorkerPoolTest
+{
+    private static final int PARALLELISM = 4;
+    private final WorkerPool pool = new WorkerPool(PARALLELISM);
+
+
+    @AfterEach
+    void closePool()
+    {
+        pool.close();
+    }
+
+
+    @Test
+    void everyIndexIsVisitedOnce()
+    {
+        for(int length : new int[] {0, 1, PARALLELISM - 1, PARALLELISM, PARALLELISM + 1, 1000})
+        {
+            // a range not starting at 0
+            int start = 7;
+            AtomicIntegerArray visits = new AtomicIntegerArray(length);
+            pool.parallelFor(start, start + length, i -> visits.incrementAndGet(i - start));
+            for(int i = 0; i < length; i++)
+            {
+                assertEquals(1, visits.get(i), "index " + i + " of " + length);
+            }
+        }
+    }
+
+
+    @Test
+    void failureOfAWorkerIsRethrownToTheCaller()
+    {
+        IllegalStateException failure = new IllegalStateException("failed");
+        // the last index is in the partition of the last worker
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> pool.parallelFor(0, 100, i -> {
+            if(i == 99)
+            {
+                throw failure;
+            }
+        }));
+        assertSame(failure, thrown);
+        // the pool goes on with the next loop
+        AtomicIntegerArray visits = new AtomicIntegerArray(100);
+        pool.parallelFor(0, 100, visits::incrementAndGet);
+        for(int i = 0; i < 100; i++)
+        {
+            assertEquals(1, visits.get(i));
+        }
+    }
+
+
+    @Test
+    void nestedLoopRunsInlineOnItsThread()
+    {
+        AtomicIntegerArray visits = new AtomicIntegerArray(PARALLELISM * 10);
+        AtomicReference<String> wrongThread = new AtomicReference<>();
+        pool.parallelFor(0, PARALLELISM, outer -> {
+            Thread thread = Thread.currentThread();
+            pool.parallelFor(0, 10, inner -> {
+                if(Thread.currentThread() != thread)
+                {
+                    wrongThread.set(Thread.currentThread().getName());
+                }
+                visits.incrementAndGet(outer * 10 + inner);
+            });
+        });
+        assertEquals(null, wrongThread.get());
+        for(int i = 0; i < visits.length(); i++)
+        {
+            assertEquals(1, visits.get(i), "index " + i);
+        }
+    }
+
+
+    @Test
+    void concurrentCallersTakeTurnsOnTheWorkers() throws Exception
+    {
+        int callers = 4;
+        int loops = 200;
+        Thread[] threads = new Thread[callers];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for(int c = 0; c < callers; c++)
+        {
+            threads[c] = new Thread(() -> {
+                try
+                {
+                    for(int loop = 0; loop < loops; loop++)
+                    {
+                        AtomicIntegerArray visits = new AtomicIntegerArray(PARALLELISM * 8);
+                        Set<Thread> threadsOfLoop = ConcurrentHashMap.newKeySet();
+                        pool.parallelFor(0, visits.length(), i -> {
+                            threadsOfLoop.add(Thread.currentThread());
+                            visits.incrementAndGet(i);
+                        });
+                        for(int i = 0; i < visits.length(); i++)
+                        {
+                            assertEquals(1, visits.get(i), "index " + i);
+                        }
+                        // split over the workers, not run on the caller alone or on another pool
+                        assertEquals(PARALLELISM, threadsOfLoop.size());
+                        assertTrue(threadsOfLoop.stream().allMatch(t -> t == Thread.currentThread() || t.getName().startsWith("javollama-worker-")));
+                    }
+                }
+                catch(Throwable e)
+                {
+                    failure.set(e);
+                }
+            });
+            threads[c].start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        if(failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+
+    @Test
+    void closeWaitsForTheRunningLoop() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicIntegerArray visits = new AtomicIntegerArray(PARALLELISM);
+        Thread caller = new Thread(() -> pool.parallelFor(0, PARALLELISM, i -> {
+            if(i == 0)
+            {
+                started.countDown();
+                await(release);
+            }
+            visits.incrementAndGet(i);
+        }));
+        caller.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread closer = new Thread(pool::close);
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive(), "close returned while a loop was running");
+        release.countDown();
+        closer.join();
+        caller.join();
+        for(int i = 0; i < PARALLELISM; i++)
+        {
+            assertEquals(1, visits.get(i));
+        }
+        // later loops run inline on their caller
+        Set<Thread> threadsOfLoop = ConcurrentHashMap.newKeySet();
+        pool.parallelFor(0, 100, i -> threadsOfLoop.add(Thread.currentThread()));
+        assertEquals(Set.of(Thread.currentThread()), threadsOfLoop);
+    }
+
+
+    @Test
+    void reconfiguredParallelRunsOnTheNewPool()
+    {
+        try
+        {
+            for(int threads : new int[] {2, 3, 3, 1})
+            {
+                Parallel.configure(threads);
+                assertEquals(threads, Parallel.parallelism());
+                AtomicIntegerArray visits = new AtomicIntegerArray(100);
+                Parallel.parallelFor(0, 100, visits::incrementAndGet);
+                for(int i = 0; i < 100; i++)
+                {
+                    assertEquals(1, visits.get(i));
+                }
+            }
+        }
+        finally
+        {
+            Parallel.configure(0);
+        }
+    }
+
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}